@@ -0,0 +1,131 @@
+package ru.micode.executor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Сравнение накладных расходов {@link TaskExecutor} с прежней реализацией "новый поток на каждый вызов".
+ *
+ * <p>Кроме количества вызовов в секунду отчет содержит вспомогательный счетчик {@code liveThreads} - число живых
+ * потоков JVM в конце итерации.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TaskExecutorBenchmark {
+
+    private TaskExecutor pooled;
+    private TaskExecutor virtual;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pooled = TaskExecutor.fixedPool(TaskExecutor.DEFAULT_POOL_SIZE);
+        virtual = VirtualThreads.isAvailable()
+            ? TaskExecutor.virtualThreads()
+            : pooled;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pooled.close();
+        virtual.close();
+    }
+
+    /**
+     * Прежнее поведение: отдельный {@code newSingleThreadExecutor()} на вызов без завершения.
+     *
+     * @param threads счетчик живых потоков
+     * @return результат задачи
+     * @throws Exception ошибка выполнения задачи
+     */
+    @Benchmark
+    public Integer legacyThreadPerCall(Threads threads) throws Exception {
+        threads.sample();
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future<Integer> future = executorService.submit(() -> 1);
+        try {
+            return future.get(1, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Benchmark
+    public Integer sharedPool(Threads threads) throws TaskExecutor.TaskException {
+        threads.sample();
+        return pooled.invoke(1, TimeUnit.SECONDS, () -> 1);
+    }
+
+    @Benchmark
+    public Integer virtualThreads(Threads threads) throws TaskExecutor.TaskException {
+        threads.sample();
+        return virtual.invoke(1, TimeUnit.SECONDS, () -> 1);
+    }
+
+    /**
+     * Статический фасад {@link TaskExecutor#call(long, TimeUnit, ResultSupplier)} на общем исполнителе.
+     *
+     * @param threads счетчик живых потоков
+     * @return результат задачи
+     * @throws TaskExecutor.TaskException ошибка выполнения задачи
+     */
+    @Benchmark
+    public Integer staticCall(Threads threads) throws TaskExecutor.TaskException {
+        threads.sample();
+        return TaskExecutor.call(1, TimeUnit.SECONDS, () -> 1);
+    }
+
+    /**
+     * Неблокирующий вызов с таймаутом на колесе таймеров, результат ожидается в потоке бенчмарка.
+     *
+     * @param threads счетчик живых потоков
+     * @return результат задачи
+     * @throws Exception ошибка выполнения задачи
+     */
+    @Benchmark
+    public Integer asyncCall(Threads threads) throws Exception {
+        threads.sample();
+        return pooled.invokeAsync(1, TimeUnit.SECONDS, () -> 1).get();
+    }
+
+    /**
+     * Вспомогательный счетчик количества живых потоков.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Threads {
+
+        private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+        public long liveThreads;
+        private int calls;
+
+        void sample() {
+            if ((calls++ & 1023) == 0) {
+                liveThreads = THREAD_BEAN.getThreadCount();
+            }
+        }
+    }
+}
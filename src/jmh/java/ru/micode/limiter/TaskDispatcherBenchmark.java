@@ -0,0 +1,88 @@
+package ru.micode.limiter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Постановка задач без ожидания результата: {@link TaskDispatcher} на кольцах против {@link TaskLimiter} с
+ * ограниченной очередью.
+ *
+ * <p>4 потока отправляют задачи без лимита частоты, при заполнении очереди производитель ждет. Количество байт,
+ * выделяемых на задачу, показывает профилировщик GC ({@code gc.alloc.rate.norm}):
+ * {@code gradle jmh -PjmhArgs='TaskDispatcherBenchmark -prof gc'}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class TaskDispatcherBenchmark {
+
+    private static final int CAPACITY = 1024;
+    private final LongAdder completed = new LongAdder();
+    private final TaskDispatcher.Callback<Integer, Integer> callback = (task, result, failure) -> completed.increment();
+    private TaskDispatcher<Integer, Integer> dispatcher;
+    private TaskLimiter<Integer, Integer> taskLimiter;
+
+    /**
+     * Создает диспетчер с двумя полосами и ограничитель с той же емкостью очереди, оба без лимита частоты.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        dispatcher = TaskDispatcher.<Integer, Integer>builder(value -> value)
+            .name("benchmark")
+            .bands(0, 4)
+            .ringSize(CAPACITY)
+            .build();
+        taskLimiter = TaskLimiter.<Integer, Integer>builder()
+            .name("benchmark")
+            .threadPoolSize(1)
+            .capacity(CAPACITY)
+            .overflowPolicy(TaskLimiter.OverflowPolicy.BLOCK)
+            .blockTimeout(10, TimeUnit.SECONDS)
+            .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.shutdown();
+        taskLimiter.shutdownAll();
+    }
+
+    /**
+     * Задача в кольце диспетчера с общим обработчиком результата.
+     */
+    @Benchmark
+    public void dispatcherOffer() {
+        while (!dispatcher.offer(1, 1, callback)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Задача в очереди ограничителя с обработчиком на {@link TaskWrapper}.
+     *
+     * @return обертка задачи
+     */
+    @Benchmark
+    public TaskWrapper<Integer, Integer> limiterCreateTask() {
+        return taskLimiter.createTask(1, 1, value -> value)
+            .whenComplete((result, failure) -> completed.increment());
+    }
+}
@@ -0,0 +1,67 @@
+package ru.micode.limiter;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Пропускная способность и задержка {@link TaskLimiter} от {@code createTask} до результата.
+ *
+ * <p>16 потоков отправляют задачи с приоритетами от 0 до {@code priorities - 1}. При лимите 2000 в секунду часть
+ * задач всегда откладывается, при лимите 1000000 измеряются накладные расходы очереди и пула размера
+ * {@code poolSize}. Режим {@code SampleTime} дает распределение времени до результата, включая p99.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class TaskLimiterBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int poolSize;
+    @Param({"1", "8"})
+    public int priorities;
+    @Param({"2000", "1000000"})
+    public int requestPerSecond;
+    private TaskLimiter<Integer, Integer> taskLimiter;
+
+    /**
+     * Создает ограничитель с лимитом в секунду без лимита в минуту.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        taskLimiter = TaskLimiter.<Integer, Integer>builder()
+            .name("benchmark")
+            .threadPoolSize(poolSize)
+            .limit(requestPerSecond, 1, TimeUnit.SECONDS)
+            .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        taskLimiter.shutdownAll();
+    }
+
+    @Benchmark
+    public Integer completion() {
+        int priority = ThreadLocalRandom.current().nextInt(priorities);
+        return taskLimiter.createTask(priority, priority, value -> value).waitForThrow(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,106 @@
+package ru.micode.limiter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Конкурентный доступ к {@link TimeLimitCounter#decrementAndGet()} от 1 до 64 потоков.
+ *
+ * <p>{@code LEGACY} - прежняя реализация с блоком {@code synchronized} и {@code currentTimeMillis()} на каждом вызове.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimeLimitCounterBenchmark {
+
+    @Param({"LEGACY", "FIXED_WINDOW", "TOKEN_BUCKET"})
+    public String mode;
+    private TimeLimitCounter counter;
+    private SynchronizedCounter legacy;
+
+    /**
+     * Создает счетчик выбранного режима.
+     */
+    @Setup
+    public void setUp() {
+        if ("LEGACY".equals(mode)) {
+            legacy = new SynchronizedCounter(1_000_000, 1, TimeUnit.SECONDS);
+        } else {
+            counter = new TimeLimitCounter(1_000_000, 1, TimeUnit.SECONDS, TimeLimitCounter.Mode.valueOf(mode));
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int threads01() {
+        return decrement();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int threads04() {
+        return decrement();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public int threads16() {
+        return decrement();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public int threads64() {
+        return decrement();
+    }
+
+    private int decrement() {
+        return legacy != null
+            ? legacy.decrementAndGet()
+            : counter.decrementAndGet();
+    }
+
+    /**
+     * Копия прежней реализации счетчика для сравнения.
+     */
+    static final class SynchronizedCounter {
+
+        private final AtomicInteger counter;
+        private final long delayMillis;
+        private final int initValue;
+        private long nextResetCounter;
+
+        SynchronizedCounter(int resetCounterValue, long timeDelay, TimeUnit timeUnit) {
+            this.initValue = resetCounterValue;
+            this.counter = new AtomicInteger(resetCounterValue);
+            this.delayMillis = timeUnit.toMillis(timeDelay);
+        }
+
+        int decrementAndGet() {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                if (nextResetCounter < now) {
+                    counter.set(initValue);
+                    nextResetCounter = now + delayMillis;
+                }
+            }
+            return counter.decrementAndGet();
+        }
+    }
+}
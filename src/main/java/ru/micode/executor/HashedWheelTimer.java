@@ -0,0 +1,218 @@
+package ru.micode.executor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Таймер на хешированном колесе.
+ *
+ * <p>Один поток-демон обслуживает все таймауты. Постановка и отмена таймаута выполняются за O(1) без блокировок:
+ * новые таймауты попадают в lock-free стек и переносятся в корзины колеса потоком таймера, отмененные таймауты
+ * удаляются из корзин при очередном проходе колеса. Точность срабатывания ограничена длительностью тика, задачи
+ * срабатывания выполняются в потоке таймера и должны быть короткими.
+ */
+public class HashedWheelTimer {
+
+    private static final Logger logger = LoggerFactory.getLogger(HashedWheelTimer.class);
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickNanos;
+    private final long startTime;
+    private final AtomicReference<Timeout> pending;
+    private final Thread worker;
+    private volatile boolean work;
+
+    /**
+     * Конструктор.
+     *
+     * @param name       название потока таймера
+     * @param tick       длительность тика
+     * @param timeUnit   единица измерения длительности тика
+     * @param wheelSize  количество корзин колеса (округляется до степени двойки)
+     */
+    public HashedWheelTimer(String name, long tick, TimeUnit timeUnit, int wheelSize) {
+        if (tick <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tick and wheelSize must be positive");
+        }
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        this.wheel = new Bucket[Math.max(size, 1)];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheel.length - 1;
+        this.tickNanos = timeUnit.toNanos(tick);
+        this.pending = new AtomicReference<>();
+        this.startTime = System.nanoTime();
+        this.work = true;
+        this.worker = new Thread(this::runWorker, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Устанавливает задачу, которая будет выполнена в потоке таймера по истечении задержки.
+     *
+     * @param task     задача срабатывания
+     * @param delay    задержка
+     * @param timeUnit единица измерения задержки
+     * @return дескриптор таймаута для отмены
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit timeUnit) {
+        if (!work) {
+            throw new IllegalStateException("timer is stopped");
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + timeUnit.toNanos(delay));
+        Timeout head;
+        do {
+            head = pending.get();
+            timeout.next = head;
+        } while (!pending.compareAndSet(head, timeout));
+        return timeout;
+    }
+
+    /**
+     * Останавливает поток таймера. Неистекшие таймауты не срабатывают.
+     */
+    public void stop() {
+        work = false;
+        worker.interrupt();
+    }
+
+    private void runWorker() {
+        long tick = 0;
+        while (work) {
+            long sleepNanos = startTime + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+                continue;
+            }
+            transferPending(tick);
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    private void transferPending(long tick) {
+        Timeout timeout = pending.getAndSet(null);
+        while (timeout != null) {
+            Timeout nextPending = timeout.next;
+            timeout.next = null;
+            if (timeout.state == Timeout.INIT) {
+                long expireTick = Math.max(timeout.deadline / tickNanos, tick);
+                timeout.remainingRounds = (expireTick - tick) / wheel.length;
+                wheel[(int) (expireTick & mask)].add(timeout);
+            }
+            timeout = nextPending;
+        }
+    }
+
+    /**
+     * Корзина колеса - двусвязный список таймаутов, доступный только потоку таймера.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            if (head == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+            }
+            tail = timeout;
+        }
+
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.state != Timeout.INIT) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+
+    /**
+     * Дескриптор установленного таймаута.
+     */
+    public static final class Timeout {
+
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+        private final long deadline;
+        private volatile int state;
+        private Runnable task;
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Отменяет таймаут, если он еще не сработал.
+         *
+         * @return true, если таймаут отменен этим вызовом
+         */
+        public boolean cancel() {
+            if (STATE.compareAndSet(this, INIT, CANCELLED)) {
+                task = null;
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (STATE.compareAndSet(this, INIT, EXPIRED)) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    logger.warn("an error timeout task", e);
+                }
+                task = null;
+            }
+        }
+    }
+}
@@ -1,19 +1,109 @@
 package ru.micode.executor;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ru.micode.metrics.ExecutorMetrics;
 
 /**
  * Исполнитель задач.
+ *
+ * <p>Экземпляр работает поверх общего пула потоков (или виртуальных потоков), задачи с истекшим временем ожидания
+ * отменяются с прерыванием потока. Статический {@link #call(long, TimeUnit, ResultSupplier)} использует общий
+ * экземпляр по умолчанию.
+ *
+ * <p>Таймауты неблокирующих вызовов {@link #invokeAsync(long, TimeUnit, ResultSupplier)} обслуживает один общий
+ * {@link HashedWheelTimer}.
  */
-public class TaskExecutor {
+public class TaskExecutor implements AutoCloseable {
+
+    /**
+     * Размер пула общего исполнителя, если виртуальные потоки недоступны. Задается системным свойством
+     * {@code mutaba.executor.poolSize}.
+     */
+    public static final int DEFAULT_POOL_SIZE = Integer.getInteger("mutaba.executor.poolSize", 64);
+    private final ExecutorService executorService;
+    private final HashedWheelTimer timer;
+    private final ExecutorMetrics metrics;
+
+    /**
+     * Конструктор с общим таймером таймаутов.
+     *
+     * @param executorService сервис, в потоках которого выполняются задачи
+     */
+    public TaskExecutor(ExecutorService executorService) {
+        this(executorService, SharedTimer.INSTANCE);
+    }
 
     /**
-     * Запускает обработку с предустановленным временем ожидания.
+     * Конструктор.
+     *
+     * @param executorService сервис, в потоках которого выполняются задачи
+     * @param timer           таймер таймаутов неблокирующих вызовов
+     */
+    public TaskExecutor(ExecutorService executorService, HashedWheelTimer timer) {
+        this(executorService, timer, ExecutorMetrics.DISABLED);
+    }
+
+    /**
+     * Конструктор с метриками вызовов.
+     *
+     * @param executorService сервис, в потоках которого выполняются задачи
+     * @param timer           таймер таймаутов неблокирующих вызовов
+     * @param metrics         метрики вызовов, регистрируются в экспортере вызывающей стороной
+     */
+    public TaskExecutor(ExecutorService executorService, HashedWheelTimer timer, ExecutorMetrics metrics) {
+        this.executorService = executorService;
+        this.timer = timer;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Создает исполнитель с ограниченным пулом потоков-демонов. Простаивающие потоки освобождаются.
+     *
+     * @param poolSize максимальное количество потоков
+     * @return исполнитель задач
+     */
+    public static TaskExecutor fixedPool(int poolSize) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable);
+                    thread.setName("task-executor-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        pool.allowCoreThreadTimeOut(true);
+        return new TaskExecutor(pool);
+    }
+
+    /**
+     * Создает исполнитель, запускающий каждую задачу в виртуальном потоке (JDK 21+).
+     *
+     * @return исполнитель задач
+     * @throws UnsupportedOperationException если JVM не поддерживает виртуальные потоки
+     */
+    public static TaskExecutor virtualThreads() {
+        return new TaskExecutor(VirtualThreads.newVirtualThreadPerTaskExecutor());
+    }
+
+    /**
+     * Запускает обработку с предустановленным временем ожидания в общем исполнителе.
      *
      * @param timeout      значение времени ожидания обработки
      * @param timeUnit     единица измерения времени
@@ -23,15 +113,93 @@ public class TaskExecutor {
      * @throws TaskException Ошибка выполнения задачи.
      */
     public static <T> T call(long timeout, TimeUnit timeUnit, ResultSupplier<T> taskSupplier) throws TaskException {
+        return Shared.INSTANCE.invoke(timeout, timeUnit, taskSupplier);
+    }
+
+    /**
+     * Запускает неблокирующую обработку с предустановленным временем ожидания в общем исполнителе.
+     *
+     * @param timeout      значение времени ожидания обработки
+     * @param timeUnit     единица измерения времени
+     * @param taskSupplier интерфейс обработки
+     * @param <T>          тип возвращаемых данных
+     * @return будущий результат, завершается с {@link TaskException} при ошибке или истечении времени
+     */
+    public static <T> CompletableFuture<T> callAsync(long timeout, TimeUnit timeUnit, ResultSupplier<T> taskSupplier) {
+        return Shared.INSTANCE.invokeAsync(timeout, timeUnit, taskSupplier);
+    }
+
+    /**
+     * Запускает обработку с предустановленным временем ожидания. По истечении времени задача отменяется, поток
+     * выполнения прерывается.
+     *
+     * @param timeout      значение времени ожидания обработки
+     * @param timeUnit     единица измерения времени
+     * @param taskSupplier интерфейс обработки
+     * @param <T>          тип возвращаемых данных
+     * @return {@link T} экземпляр результата
+     * @throws TaskException Ошибка выполнения задачи.
+     */
+    public <T> T invoke(long timeout, TimeUnit timeUnit, ResultSupplier<T> taskSupplier) throws TaskException {
+        final long start = metrics.isEnabled()
+            ? System.nanoTime()
+            : 0L;
+        Future<T> future = executorService.submit(taskSupplier::getThrow);
         try {
-            ExecutorService executorService = Executors.newSingleThreadExecutor();
-            Future<T> future = executorService.submit(taskSupplier::getThrow);
-            return future.get(timeout, timeUnit);
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            T result = future.get(timeout, timeUnit);
+            if (start != 0L) {
+                metrics.onCompleted(System.nanoTime() - start);
+            }
+            return result;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new TaskException(e);
+        } catch (ExecutionException e) {
+            if (start != 0L) {
+                metrics.onFailed(System.nanoTime() - start);
+            }
+            throw new TaskException(e);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            if (start != 0L) {
+                metrics.onTimedOut(System.nanoTime() - start);
+            }
             throw new TaskException(e);
         }
     }
 
+    /**
+     * Запускает неблокирующую обработку с предустановленным временем ожидания. Вызывающий поток не ждет результата: по
+     * истечении времени таймер завершает результат с {@link TaskException} (причина - {@link TimeoutException}) и
+     * прерывает задачу. Отмена возвращенного future также прерывает задачу.
+     *
+     * @param timeout      значение времени ожидания обработки
+     * @param timeUnit     единица измерения времени
+     * @param taskSupplier интерфейс обработки
+     * @param <T>          тип возвращаемых данных
+     * @return будущий результат, завершается с {@link TaskException} при ошибке или истечении времени
+     */
+    public <T> CompletableFuture<T> invokeAsync(long timeout, TimeUnit timeUnit, ResultSupplier<T> taskSupplier) {
+        AsyncCall<T> call = new AsyncCall<>(taskSupplier, metrics);
+        call.timeout = timer.newTimeout(call, timeout, timeUnit);
+        try {
+            executorService.execute(call.futureTask);
+        } catch (RejectedExecutionException e) {
+            call.timeout.cancel();
+            call.completeExceptionally(new TaskException(e));
+        }
+        return call;
+    }
+
+    /**
+     * Завершает работу исполнителя, прерывая выполняющиеся задачи.
+     */
+    @Override
+    public void close() {
+        executorService.shutdownNow();
+    }
+
     /**
      * Исключение при обработке задачи.
      */
@@ -41,4 +209,88 @@ public class TaskExecutor {
             super(cause);
         }
     }
+
+    /**
+     * Неблокирующий вызов: сам является результатом, задачей исполнителя и задачей срабатывания таймаута, чтобы
+     * не создавать лишних объектов на вызов.
+     */
+    private static final class AsyncCall<T> extends CompletableFuture<T> implements Callable<Void>, Runnable {
+
+        private final ResultSupplier<T> supplier;
+        private final FutureTask<Void> futureTask;
+        private final ExecutorMetrics metrics;
+        private final long start;
+        private volatile HashedWheelTimer.Timeout timeout;
+
+        AsyncCall(ResultSupplier<T> supplier, ExecutorMetrics metrics) {
+            this.supplier = supplier;
+            this.futureTask = new FutureTask<>(this);
+            this.metrics = metrics;
+            this.start = metrics.isEnabled()
+                ? System.nanoTime()
+                : 0L;
+        }
+
+        /**
+         * Выполнение задачи в потоке исполнителя.
+         */
+        @Override
+        public Void call() {
+            if (!isDone()) {
+                try {
+                    if (complete(supplier.getThrow()) && start != 0L) {
+                        metrics.onCompleted(System.nanoTime() - start);
+                    }
+                } catch (Exception e) {
+                    if (completeExceptionally(new TaskException(e)) && start != 0L) {
+                        metrics.onFailed(System.nanoTime() - start);
+                    }
+                }
+                timeout.cancel();
+            }
+            return null;
+        }
+
+        /**
+         * Срабатывание таймаута в потоке таймера.
+         */
+        @Override
+        public void run() {
+            if (completeExceptionally(new TaskException(new TimeoutException("task timed out")))) {
+                futureTask.cancel(true);
+                if (start != 0L) {
+                    metrics.onTimedOut(System.nanoTime() - start);
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                timeout.cancel();
+                futureTask.cancel(true);
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * Общий таймер таймаутов, создается при первом обращении.
+     */
+    private static final class SharedTimer {
+
+        private static final HashedWheelTimer INSTANCE =
+            new HashedWheelTimer("task-executor-timer", 10, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * Общий исполнитель для статического фасада, создается при первом обращении.
+     */
+    private static final class Shared {
+
+        private static final TaskExecutor INSTANCE = VirtualThreads.isAvailable()
+            ? virtualThreads()
+            : fixedPool(DEFAULT_POOL_SIZE);
+    }
 }
@@ -0,0 +1,58 @@
+package ru.micode.executor;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Доступ к виртуальным потокам без жесткой привязки к версии JDK.
+ *
+ * <p>Библиотека собирается под Java 11, поэтому {@code Executors.newVirtualThreadPerTaskExecutor()} вызывается через
+ * reflection и доступен только при запуске на JDK 21+.
+ */
+public final class VirtualThreads {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+    private static final Method NEW_EXECUTOR = lookup();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Проверяет поддержку виртуальных потоков текущей JVM.
+     *
+     * @return true, если виртуальные потоки доступны
+     */
+    public static boolean isAvailable() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * Создает исполнитель, запускающий каждую задачу в отдельном виртуальном потоке.
+     *
+     * @return исполнитель на виртуальных потоках
+     * @throws UnsupportedOperationException если JVM не поддерживает виртуальные потоки
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (NEW_EXECUTOR == null) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21+");
+        }
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads are not available", e);
+        }
+    }
+
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            logger.debug("virtual threads are not supported by this JVM");
+            return null;
+        }
+    }
+}
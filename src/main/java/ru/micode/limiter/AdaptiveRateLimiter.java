@@ -0,0 +1,338 @@
+package ru.micode.limiter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ограничитель с частотой, подстраиваемой по результатам задач (AIMD).
+ *
+ * <p>Успешная задача быстрее порога задержки увеличивает частоту на {@code increase} разрешений в секунду за каждую
+ * секунду успешной работы. Задача, признанная классификатором ограниченной внешним сервисом, или слишком медленная
+ * задача уменьшает частоту в {@code decreaseFactor} раз, но не чаще раза за {@code cooldown}. Исключение
+ * {@link RetryAfterException} дополнительно приостанавливает выдачу разрешений на указанное время.
+ *
+ * <p>Разрешения выдаются как в {@link TimeLimitCounter.Mode#TOKEN_BUCKET}: время следующего разрешения хранится в
+ * {@link AtomicLong} и изменяется только через CAS.
+ */
+public class AdaptiveRateLimiter implements RateLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveRateLimiter.class);
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private final AtomicLong tat = new AtomicLong(System.nanoTime());
+    private final AtomicLong rateBits;
+    private final AtomicLong pausedUntil = new AtomicLong(System.nanoTime());
+    private final AtomicLong lastDecrease = new AtomicLong(System.nanoTime());
+    private final double minRate;
+    private final double maxRate;
+    private final double increase;
+    private final double decreaseFactor;
+    private final long latencyThresholdNanos;
+    private final long cooldownNanos;
+    private final long burstNanos;
+    private final Predicate<Throwable> throttled;
+    private final String name;
+
+    private AdaptiveRateLimiter(Builder builder) {
+        if (builder.minRate <= 0 || builder.maxRate < builder.minRate) {
+            throw new IllegalArgumentException("rates must satisfy 0 < minRate <= maxRate");
+        }
+        if (builder.decreaseFactor <= 0 || builder.decreaseFactor >= 1) {
+            throw new IllegalArgumentException("decreaseFactor must be between 0 and 1");
+        }
+        this.name = builder.name;
+        this.minRate = builder.minRate;
+        this.maxRate = builder.maxRate;
+        this.increase = builder.increase;
+        this.decreaseFactor = builder.decreaseFactor;
+        this.latencyThresholdNanos = builder.latencyThresholdNanos;
+        this.cooldownNanos = builder.cooldownNanos;
+        this.burstNanos = builder.burstNanos;
+        this.throttled = builder.throttled;
+        this.rateBits = new AtomicLong(Double.doubleToLongBits(
+            Math.min(maxRate, Math.max(minRate, builder.initialRate))));
+    }
+
+    /**
+     * Создает построитель ограничителя.
+     *
+     * @return построитель
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Возвращает текущую частоту.
+     *
+     * @return разрешений в секунду
+     */
+    public double getRate() {
+        return Double.longBitsToDouble(rateBits.get());
+    }
+
+    private long intervalNanos() {
+        return Math.max(1, (long) (NANOS_PER_SECOND / getRate()));
+    }
+
+    @Override
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        long now = System.nanoTime();
+        if (now - pausedUntil.get() < 0) {
+            return false;
+        }
+        long interval = permits * intervalNanos();
+        while (true) {
+            long current = tat.get();
+            long next = Math.max(current, now) + interval;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (tat.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        release(1);
+    }
+
+    @Override
+    public void release(int permits) {
+        long interval = permits * intervalNanos();
+        long now = System.nanoTime();
+        tat.getAndUpdate(current -> current - now > 0
+            ? Math.max(current - interval, now)
+            : current);
+    }
+
+    @Override
+    public int available() {
+        long now = System.nanoTime();
+        if (now - pausedUntil.get() < 0) {
+            return 0;
+        }
+        long used = Math.max(tat.get() - now, 0);
+        return (int) Math.max(0, (burstNanos - used) / intervalNanos());
+    }
+
+    /**
+     * Возвращает емкость окна накопления при наименьшей частоте. Частота не опускается ниже {@code minRate},
+     * поэтому задача такой стоимости получит разрешения после любого снижения частоты, а более дорогая может их
+     * не получить никогда.
+     *
+     * @return количество разрешений
+     */
+    @Override
+    public int maxPermits() {
+        return (int) Math.max(1, burstNanos / Math.max(1, (long) (NANOS_PER_SECOND / minRate)));
+    }
+
+    @Override
+    public boolean isReplenished() {
+        long now = System.nanoTime();
+        return tat.get() - now <= 0 && now - pausedUntil.get() >= 0;
+    }
+
+    @Override
+    public long nanosToNextPermit() {
+        return nanosToPermits(1);
+    }
+
+    @Override
+    public long nanosToPermits(int permits) {
+        long now = System.nanoTime();
+        long pause = pausedUntil.get() - now;
+        long next = Math.max(tat.get(), now) + permits * intervalNanos() - burstNanos - now;
+        return Math.max(0, Math.max(pause, next));
+    }
+
+    @Override
+    public boolean isAdaptive() {
+        return true;
+    }
+
+    @Override
+    public void onComplete(long latencyNanos, Throwable failure) {
+        RetryAfterException retryAfter = RetryAfterException.find(failure);
+        if (retryAfter != null) {
+            pause(retryAfter.getDelayNanos());
+        }
+        if (failure != null
+            ? retryAfter != null || throttled.test(failure)
+            : latencyNanos > latencyThresholdNanos) {
+            decrease();
+        } else if (failure == null) {
+            double current = getRate();
+            // За секунду при текущей частоте успешных задач частота вырастает на increase
+            update(Math.min(maxRate, current + increase / current));
+        }
+    }
+
+    /**
+     * Приостанавливает выдачу разрешений.
+     *
+     * @param nanos время паузы в наносекундах
+     */
+    public void pause(long nanos) {
+        long until = System.nanoTime() + nanos;
+        pausedUntil.accumulateAndGet(until, (current, next) -> next - current > 0
+            ? next
+            : current);
+        logger.debug("rate limiter {} paused for {} ms", name, TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    private void decrease() {
+        long now = System.nanoTime();
+        long last = lastDecrease.get();
+        if (now - last < cooldownNanos || !lastDecrease.compareAndSet(last, now)) {
+            return;
+        }
+        double rate = update(Math.max(minRate, getRate() * decreaseFactor));
+        logger.debug("rate limiter {} decreased rate to {}", name, rate);
+    }
+
+    private double update(double rate) {
+        rateBits.set(Double.doubleToLongBits(rate));
+        return rate;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Построитель адаптивного ограничителя.
+     */
+    public static class Builder {
+
+        private String name = "adaptive";
+        private double initialRate = 10;
+        private double minRate = 1;
+        private double maxRate = 1000;
+        private double increase = 1;
+        private double decreaseFactor = 0.5;
+        private long latencyThresholdNanos = Long.MAX_VALUE;
+        private long cooldownNanos = TimeUnit.SECONDS.toNanos(1);
+        private long burstNanos = TimeUnit.SECONDS.toNanos(1);
+        private Predicate<Throwable> throttled = failure -> false;
+
+        /**
+         * Устанавливает название ограничителя для лога.
+         *
+         * @param name название
+         * @return построитель
+         */
+        public Builder name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Устанавливает начальную частоту и ее границы.
+         *
+         * @param initialRate начальная частота, разрешений в секунду
+         * @param minRate     наименьшая частота
+         * @param maxRate     наибольшая частота
+         * @return построитель
+         */
+        public Builder rate(double initialRate, double minRate, double maxRate) {
+            this.initialRate = initialRate;
+            this.minRate = minRate;
+            this.maxRate = maxRate;
+            return this;
+        }
+
+        /**
+         * Устанавливает прирост частоты за секунду успешной работы.
+         *
+         * @param increase прирост, разрешений в секунду
+         * @return построитель
+         */
+        public Builder increase(double increase) {
+            this.increase = increase;
+            return this;
+        }
+
+        /**
+         * Устанавливает множитель снижения частоты.
+         *
+         * @param decreaseFactor множитель от 0 до 1, не включая границы
+         * @return построитель
+         */
+        public Builder decreaseFactor(double decreaseFactor) {
+            this.decreaseFactor = decreaseFactor;
+            return this;
+        }
+
+        /**
+         * Устанавливает порог задержки: успешная задача медленнее порога снижает частоту.
+         *
+         * @param threshold порог задержки
+         * @param timeUnit  единица измерения порога
+         * @return построитель
+         */
+        public Builder latencyThreshold(long threshold, TimeUnit timeUnit) {
+            this.latencyThresholdNanos = timeUnit.toNanos(threshold);
+            return this;
+        }
+
+        /**
+         * Устанавливает наименьший интервал между снижениями частоты, чтобы ответы на уже отправленные запросы не
+         * снижали частоту повторно.
+         *
+         * @param cooldown интервал
+         * @param timeUnit единица измерения интервала
+         * @return построитель
+         */
+        public Builder cooldown(long cooldown, TimeUnit timeUnit) {
+            this.cooldownNanos = timeUnit.toNanos(cooldown);
+            return this;
+        }
+
+        /**
+         * Устанавливает окно накопления разрешений: при простое накапливается не больше разрешений, чем выдается
+         * за это окно.
+         *
+         * @param burst    окно накопления
+         * @param timeUnit единица измерения окна
+         * @return построитель
+         */
+        public Builder burst(long burst, TimeUnit timeUnit) {
+            this.burstNanos = timeUnit.toNanos(burst);
+            return this;
+        }
+
+        /**
+         * Устанавливает классификатор исключений задач, означающих ограничение внешним сервисом (например, HTTP 429
+         * или 503). {@link RetryAfterException} считается ограничением всегда.
+         *
+         * @param throttled классификатор
+         * @return построитель
+         */
+        public Builder throttled(Predicate<Throwable> throttled) {
+            this.throttled = throttled;
+            return this;
+        }
+
+        /**
+         * Создает ограничитель.
+         *
+         * @return адаптивный ограничитель
+         */
+        public AdaptiveRateLimiter build() {
+            return new AdaptiveRateLimiter(this);
+        }
+    }
+}
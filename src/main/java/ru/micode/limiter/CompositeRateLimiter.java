@@ -0,0 +1,159 @@
+package ru.micode.limiter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ограничитель из нескольких окон (в секунду, минуту, час, сутки и т.д.).
+ *
+ * <p>Разрешение выдается, только если его выдали все окна: окна опрашиваются по порядку, и при отказе любого из них
+ * уже полученные разрешения возвращаются. Поэтому задача, прошедшая секундное окно, но не прошедшая минутное, не
+ * расходует секундный лимит. Пустой набор окон не ограничивает частоту.
+ */
+public class CompositeRateLimiter implements RateLimiter {
+
+    private final List<RateLimiter> limiters;
+    private final String name;
+    private final boolean adaptive;
+
+    /**
+     * Конструктор.
+     *
+     * @param name     название ограничителя для лога
+     * @param limiters ограничители окон в порядке опроса, обычно от короткого окна к длинному
+     */
+    public CompositeRateLimiter(String name, List<? extends RateLimiter> limiters) {
+        this.name = name;
+        this.limiters = Collections.unmodifiableList(new ArrayList<>(limiters));
+        this.adaptive = this.limiters.stream().anyMatch(RateLimiter::isAdaptive);
+    }
+
+    @Override
+    public boolean tryAcquire() {
+        return tryAcquireAll() == null;
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        return tryAcquireAll(permits) == null;
+    }
+
+    /**
+     * Забирает разрешение во всех окнах или не забирает ни одного.
+     *
+     * @return null, если разрешение получено, иначе ограничитель окна, отказавший в разрешении
+     */
+    public RateLimiter tryAcquireAll() {
+        return tryAcquireAll(1);
+    }
+
+    /**
+     * Забирает несколько разрешений во всех окнах или не забирает ни одного. Если окно завершилось исключением
+     * (например, ошибкой хранилища общего лимита), полученные разрешения тоже возвращаются.
+     *
+     * @param permits количество разрешений
+     * @return null, если разрешения получены, иначе ограничитель окна, отказавший в разрешении
+     */
+    public RateLimiter tryAcquireAll(int permits) {
+        for (int i = 0; i < limiters.size(); i++) {
+            RateLimiter limiter = limiters.get(i);
+            boolean acquired = false;
+            try {
+                acquired = limiter.tryAcquire(permits);
+            } finally {
+                if (!acquired) {
+                    while (i-- > 0) {
+                        limiters.get(i).release(permits);
+                    }
+                }
+            }
+            if (!acquired) {
+                return limiter;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void release() {
+        limiters.forEach(RateLimiter::release);
+    }
+
+    @Override
+    public void release(int permits) {
+        for (RateLimiter limiter : limiters) {
+            limiter.release(permits);
+        }
+    }
+
+    @Override
+    public int available() {
+        int available = Integer.MAX_VALUE;
+        for (RateLimiter limiter : limiters) {
+            available = Math.min(available, limiter.available());
+        }
+        return available;
+    }
+
+    @Override
+    public int maxPermits() {
+        int max = Integer.MAX_VALUE;
+        for (RateLimiter limiter : limiters) {
+            max = Math.min(max, limiter.maxPermits());
+        }
+        return max;
+    }
+
+    @Override
+    public boolean isReplenished() {
+        for (RateLimiter limiter : limiters) {
+            if (!limiter.isReplenished()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long nanosToNextPermit() {
+        long nanos = 0;
+        for (RateLimiter limiter : limiters) {
+            nanos = Math.max(nanos, limiter.nanosToNextPermit());
+        }
+        return nanos;
+    }
+
+    @Override
+    public long nanosToPermits(int permits) {
+        long nanos = 0;
+        for (RateLimiter limiter : limiters) {
+            nanos = Math.max(nanos, limiter.nanosToPermits(permits));
+        }
+        return nanos;
+    }
+
+    @Override
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    @Override
+    public void onComplete(long latencyNanos, Throwable failure) {
+        if (!adaptive) {
+            return;
+        }
+        for (RateLimiter limiter : limiters) {
+            limiter.onComplete(latencyNanos, failure);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public List<RateLimiter> getLimiters() {
+        return limiters;
+    }
+}
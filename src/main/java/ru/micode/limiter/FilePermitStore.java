@@ -0,0 +1,202 @@
+package ru.micode.limiter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Хранилище счетчиков разрешений в отображенном в память файле, общее для процессов одной машины.
+ *
+ * <p>Файл состоит из заголовка и таблицы слотов с открытой адресацией: слот хранит хеш ключа, время окончания окна и
+ * количество выданных разрешений. Слот ключа, окно которого закончилось, занимается новым ключом, поэтому размер
+ * таблицы ограничивает только количество ключей с действующими окнами; при их избытке выдача разрешений завершается
+ * {@link IllegalStateException}. Изменения выполняются под {@link FileLock} всего файла, а внутри процесса - под
+ * общей для пути блокировкой, так как {@link FileLock} не разделяет потоки одной JVM. Блокировка удерживается только
+ * на время чтения и записи слота.
+ */
+public class FilePermitStore implements PermitStore, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FilePermitStore.class);
+    private static final int MAGIC = 0x4D505332;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 24;
+    private static final ConcurrentHashMap<Path, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final ReentrantLock lock;
+    private final int slots;
+
+    /**
+     * Открывает или создает файл хранилища.
+     *
+     * @param path  путь к файлу, общий для всех процессов
+     * @param slots количество слотов (наибольшее число ключей с действующими окнами); у существующего файла
+     *              используется его значение
+     * @throws IOException ошибка открытия файла
+     */
+    public FilePermitStore(Path path, int slots) throws IOException {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("slots must be positive");
+        }
+        Path realPath = path.toAbsolutePath().normalize();
+        this.lock = LOCKS.computeIfAbsent(realPath, key -> new ReentrantLock());
+        this.channel = FileChannel.open(realPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        lock.lock();
+        FileLock fileLock = null;
+        try {
+            fileLock = channel.lock();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (header.getInt(0) == MAGIC) {
+                this.slots = header.getInt(4);
+            } else {
+                header.putInt(4, slots);
+                header.putInt(0, MAGIC);
+                this.slots = slots;
+                logger.debug("permit store {} created with {} slots", realPath, slots);
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) this.slots * SLOT_SIZE);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        } finally {
+            unlock(fileLock);
+        }
+    }
+
+    @Override
+    public int lease(String key, long windowMillis, int limit, int requested) {
+        final long now = System.currentTimeMillis();
+        long windowEnd = (PermitStore.window(now, windowMillis) + 1) * windowMillis;
+        long hash = hash(key);
+        lock.lock();
+        FileLock fileLock = null;
+        try {
+            fileLock = channel.lock();
+            int offset = slot(hash, now, true);
+            long used = buffer.getLong(offset) == hash && buffer.getLong(offset + 8) == windowEnd
+                ? buffer.getLong(offset + 16)
+                : 0;
+            int granted = (int) Math.max(0, Math.min(requested, limit - used));
+            buffer.putLong(offset, hash);
+            buffer.putLong(offset + 8, windowEnd);
+            buffer.putLong(offset + 16, used + granted);
+            return granted;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            unlock(fileLock);
+        }
+    }
+
+    @Override
+    public int remaining(String key, long windowMillis, int limit) {
+        final long now = System.currentTimeMillis();
+        long windowEnd = (PermitStore.window(now, windowMillis) + 1) * windowMillis;
+        long hash = hash(key);
+        lock.lock();
+        FileLock fileLock = null;
+        try {
+            fileLock = channel.lock(0, Long.MAX_VALUE, true);
+            int offset = slot(hash, now, false);
+            long used = offset >= 0 && buffer.getLong(offset + 8) == windowEnd
+                ? buffer.getLong(offset + 16)
+                : 0;
+            return (int) Math.max(0, limit - used);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            unlock(fileLock);
+        }
+    }
+
+    /**
+     * Снимает блокировку файла, если она была получена, и блокировку процесса.
+     *
+     * @param fileLock блокировка файла или null
+     */
+    private void unlock(FileLock fileLock) {
+        try {
+            if (fileLock != null && fileLock.isValid()) {
+                fileLock.release();
+            }
+        } catch (IOException e) {
+            logger.warn("failed to release permit store lock: {}", e.toString());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Находит слот ключа, а для записи - свободный слот или слот с закончившимся окном. Слоты не очищаются, а
+     * занимаются заново, поэтому цепочки проб не разрываются; поиск ключа продолжается до пустого слота, чтобы ключ
+     * не попал в таблицу дважды. Вызывается под блокировкой.
+     *
+     * @param hash  хеш ключа
+     * @param now   текущее время в миллисекундах
+     * @param claim true - занять слот для записи, если ключа нет в таблице
+     * @return смещение слота в файле или -1, если ключа нет в таблице и слот не занимается
+     */
+    private int slot(long hash, long now, boolean claim) {
+        int index = (int) Math.floorMod(hash, (long) slots);
+        int expired = -1;
+        for (int i = 0; i < slots; i++) {
+            int offset = HEADER_SIZE + index * SLOT_SIZE;
+            long stored = buffer.getLong(offset);
+            if (stored == hash) {
+                return offset;
+            }
+            if (stored == 0) {
+                return !claim
+                    ? -1
+                    : expired >= 0
+                        ? expired
+                        : offset;
+            }
+            if (expired < 0 && buffer.getLong(offset + 8) - now <= 0) {
+                expired = offset;
+            }
+            index = (index + 1) % slots;
+        }
+        if (!claim) {
+            return -1;
+        }
+        if (expired < 0) {
+            throw new IllegalStateException("permit store is full: " + slots + " keys with active windows");
+        }
+        return expired;
+    }
+
+    /**
+     * Вычисляет 64-битный хеш FNV-1a ключа, одинаковый во всех процессах. Нулевой хеш означает пустой слот.
+     *
+     * @param key ключ
+     * @return хеш, не равный нулю
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0
+            ? 1
+            : hash;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
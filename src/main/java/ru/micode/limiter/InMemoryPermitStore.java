@@ -0,0 +1,37 @@
+package ru.micode.limiter;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Хранилище счетчиков разрешений в памяти процесса. Подходит для общего лимита нескольких ограничителей одной JVM и
+ * для тестов.
+ */
+public class InMemoryPermitStore implements PermitStore {
+
+    private final ConcurrentHashMap<String, long[]> windows = new ConcurrentHashMap<>();
+
+    @Override
+    public int lease(String key, long windowMillis, int limit, int requested) {
+        final long window = PermitStore.window(System.currentTimeMillis(), windowMillis);
+        final int[] granted = new int[1];
+        // Состояние ключа {номер окна, выдано} изменяется только внутри compute
+        windows.compute(key, (name, state) -> {
+            long used = state == null || state[0] != window
+                ? 0
+                : state[1];
+            granted[0] = (int) Math.max(0, Math.min(requested, limit - used));
+            return new long[]{window, used + granted[0]};
+        });
+        return granted[0];
+    }
+
+    @Override
+    public int remaining(String key, long windowMillis, int limit) {
+        long window = PermitStore.window(System.currentTimeMillis(), windowMillis);
+        long[] state = windows.get(key);
+        if (state == null || state[0] != window) {
+            return limit;
+        }
+        return (int) Math.max(0, limit - state[1]);
+    }
+}
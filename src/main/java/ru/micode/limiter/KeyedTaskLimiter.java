@@ -0,0 +1,409 @@
+package ru.micode.limiter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ограничитель выполнения задач с собственными лимитами для каждого ключа (ключа API, клиента).
+ *
+ * <p>Все ключи обслуживаются одной очередью и одним пулом потоков. Лимиты ключей хранятся в реестре из нескольких
+ * {@link ConcurrentHashMap} (полос), ключ без задач дольше времени простоя удаляется из реестра фоновой очисткой.
+ * Время простоя не короче самого длинного окна лимита, а ключ удаляется, только когда все его окна пополнены:
+ * иначе новый ограничитель ключа выдал бы полную квоту и лимит окна был бы превышен.
+ *
+ * <p>Жизненный цикл (пауза, ожидание очереди, закрытие) и стоимость задач делегируются общему {@link TaskLimiter};
+ * при остановке реестр ключей очищается.
+ *
+ * @param <KEY>    тип ключа
+ * @param <TASK>   тип задачи
+ * @param <RESULT> тип результата
+ */
+public class KeyedTaskLimiter<KEY, TASK, RESULT> implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(KeyedTaskLimiter.class);
+    private static final long DEFAULT_IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+    private final TaskLimiter<TASK, RESULT> taskLimiter;
+    private final Function<? super KEY, CompositeRateLimiter> limiterFactory;
+    private final ConcurrentHashMap<KEY, KeyState>[] stripes;
+    private final long idleNanos;
+
+    private KeyedTaskLimiter(Builder<KEY, TASK, RESULT> builder) {
+        this.idleNanos = builder.idleNanos();
+        this.taskLimiter = TaskLimiter.<TASK, RESULT>builder()
+            .name(builder.name)
+            .threadPoolSize(builder.threadPoolSize)
+            .safetyPriority(builder.safetyPriority)
+            .cost(builder.costFunction)
+            .build();
+        this.limiterFactory = builder.createLimiterFactory();
+        int size = Integer.highestOneBit(Math.max(builder.stripes, 2) - 1) << 1;
+        this.stripes = newStripes(size);
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ConcurrentHashMap<>();
+        }
+        long period = Math.max(idleNanos / 2, TimeUnit.MILLISECONDS.toNanos(10));
+        taskLimiter.getScheduler().scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Создает построитель ограничителя.
+     *
+     * @param <K> тип ключа
+     * @param <T> тип задачи
+     * @param <R> тип результата
+     * @return построитель
+     */
+    public static <K, T, R> Builder<K, T, R> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Создает задачу на обработку в рамках лимитов ключа.
+     *
+     * @param key         ключ, лимиты которого расходует задача
+     * @param task        задача которая будет передана в обработку когда подойдет ее очередь
+     * @param priority    значение приоритета
+     * @param taskProcess интерфейс обработки задачи
+     * @return обертка задачи
+     */
+    public TaskWrapper<TASK, RESULT> createTask(KEY key, TASK task, int priority,
+                                                TaskLimiter.TaskProcess<TASK, RESULT> taskProcess) {
+        return submit(key, new TaskWrapper<>(task, priority, taskProcess, new CompletableFuture<>()));
+    }
+
+    /**
+     * Создает задачу на обработку в рамках лимитов ключа с параметрами выполнения (повторы, крайний срок,
+     * стоимость).
+     *
+     * @param key         ключ, лимиты которого расходует задача
+     * @param task        задача которая будет передана в обработку когда подойдет ее очередь
+     * @param priority    значение приоритета
+     * @param options     параметры выполнения задачи
+     * @param taskProcess интерфейс обработки задачи
+     * @return обертка задачи
+     */
+    public TaskWrapper<TASK, RESULT> createTask(KEY key, TASK task, int priority, TaskOptions options,
+                                                TaskLimiter.TaskProcess<TASK, RESULT> taskProcess) {
+        TaskWrapper<TASK, RESULT> taskWrapper =
+            new TaskWrapper<>(task, priority, taskProcess, new CompletableFuture<>());
+        taskWrapper.setOptions(options);
+        return submit(key, taskWrapper);
+    }
+
+    private TaskWrapper<TASK, RESULT> submit(KEY key, TaskWrapper<TASK, RESULT> taskWrapper) {
+        Objects.requireNonNull(key, "key must not be null");
+        KeyState state = stripe(key).compute(key, (k, current) -> {
+            KeyState keyState = current == null
+                ? new KeyState(limiterFactory.apply(k))
+                : current;
+            keyState.pending++;
+            keyState.lastAccess = System.nanoTime();
+            return keyState;
+        });
+        taskWrapper.setRateLimiter(state.limiter);
+        taskWrapper.whenDone(() -> stripe(key).computeIfPresent(key, (k, current) -> {
+            current.pending--;
+            current.lastAccess = System.nanoTime();
+            return current;
+        }));
+        return taskLimiter.submit(taskWrapper);
+    }
+
+    /**
+     * Возвращает количество ключей в реестре.
+     *
+     * @return количество ключей
+     */
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<KEY, KeyState> stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    /**
+     * Приостанавливает выдачу задач из очереди, см. {@link TaskLimiter#pause()}.
+     */
+    public void pause() {
+        taskLimiter.pause();
+    }
+
+    /**
+     * Возобновляет выдачу задач из очереди сразу в пределах лимитов.
+     */
+    public void resume() {
+        taskLimiter.resume();
+    }
+
+    /**
+     * Возобновляет выдачу задач с плавным разгоном, см. {@link TaskLimiter#resume(long, TimeUnit)}.
+     *
+     * @param rampUp   время разгона
+     * @param timeUnit единица измерения времени разгона
+     */
+    public void resume(long rampUp, TimeUnit timeUnit) {
+        taskLimiter.resume(rampUp, timeUnit);
+    }
+
+    /**
+     * Перестает принимать новые задачи и ожидает выполнения задач всех ключей, см.
+     * {@link TaskLimiter#drain(long, TimeUnit)}.
+     *
+     * @param timeout  наибольшее время ожидания
+     * @param timeUnit единица измерения времени ожидания
+     * @return true, если все задачи выполнены, false - если время ожидания истекло
+     * @throws InterruptedException ожидание прервано
+     */
+    public boolean drain(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        return taskLimiter.drain(timeout, timeUnit);
+    }
+
+    /**
+     * Забирает задачи всех ключей из очереди и отложенные задачи, см. {@link TaskLimiter#removePending()}.
+     *
+     * @return задачи в порядке убывания приоритета
+     */
+    public List<TASK> removePending() {
+        return taskLimiter.removePending();
+    }
+
+    /**
+     * Закрывает ограничитель без прерывания выполняемых задач, см. {@link TaskLimiter#close()}, и очищает реестр
+     * ключей.
+     */
+    @Override
+    public void close() {
+        taskLimiter.close();
+        clear();
+    }
+
+    /**
+     * Завершает работу всех обслуживающих потоков и очищает реестр ключей.
+     */
+    public void shutdownAll() {
+        taskLimiter.shutdownAll();
+        clear();
+    }
+
+    private void clear() {
+        for (ConcurrentHashMap<KEY, KeyState> stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> ConcurrentHashMap<K, V>[] newStripes(int size) {
+        return (ConcurrentHashMap<K, V>[]) new ConcurrentHashMap<?, ?>[size];
+    }
+
+    private ConcurrentHashMap<KEY, KeyState> stripe(KEY key) {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (ConcurrentHashMap<KEY, KeyState> stripe : stripes) {
+            for (KEY key : stripe.keySet()) {
+                KeyState removed = stripe.computeIfPresent(key, (k, current) ->
+                    current.pending == 0 && now - current.lastAccess > idleNanos && current.limiter.isReplenished()
+                        ? null
+                        : current);
+                if (removed == null) {
+                    evicted++;
+                }
+            }
+        }
+        if (evicted > 0) {
+            logger.debug("evicted {} idle keys", evicted);
+        }
+    }
+
+    /**
+     * Состояние ключа. Изменяется только внутри вычислений {@link ConcurrentHashMap} по этому ключу.
+     */
+    private static final class KeyState {
+
+        private final CompositeRateLimiter limiter;
+        private int pending;
+        private long lastAccess;
+
+        KeyState(CompositeRateLimiter limiter) {
+            this.limiter = limiter;
+        }
+    }
+
+    /**
+     * Построитель ограничителя с лимитами по ключам.
+     *
+     * @param <KEY>    тип ключа
+     * @param <TASK>   тип задачи
+     * @param <RESULT> тип результата
+     */
+    public static class Builder<KEY, TASK, RESULT> {
+
+        private final List<TaskLimiter.LimitRule> rules = new ArrayList<>();
+        private Function<? super KEY, ? extends RateLimiter> quota;
+        private int threadPoolSize = 1;
+        private String name;
+        private int safetyPriority;
+        private RateLimiter.Strategy strategy = RateLimiter.Strategy.FIXED_WINDOW;
+        private int stripes = 16;
+        private long idleTimeout = -1;
+        private TimeUnit idleTimeUnit = TimeUnit.MINUTES;
+        private ToIntFunction<TASK> costFunction;
+
+        /**
+         * Устанавливает количество потоков общего пула, обрабатывающего очередь всех ключей.
+         *
+         * @param threadPoolSize количество потоков
+         * @return построитель
+         */
+        public Builder<KEY, TASK, RESULT> threadPoolSize(int threadPoolSize) {
+            this.threadPoolSize = threadPoolSize;
+            return this;
+        }
+
+        /**
+         * Устанавливает название балансера.
+         *
+         * @param name название балансера
+         * @return построитель
+         */
+        public Builder<KEY, TASK, RESULT> name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Устанавливает минимальное сохраняемое значение приоритета при достижении любого из лимитов.
+         *
+         * @param safetyPriority значение приоритета
+         * @return построитель
+         */
+        public Builder<KEY, TASK, RESULT> safetyPriority(int safetyPriority) {
+            this.safetyPriority = safetyPriority;
+            return this;
+        }
+
+        /**
+         * Устанавливает стратегию ограничения для правил {@link #limit(int, long, TimeUnit)}.
+         *
+         * @param strategy стратегия ограничения частоты
+         * @return построитель
+         */
+        public Builder<KEY, TASK, RESULT> strategy(RateLimiter.Strategy strategy) {
+            this.strategy = strategy;
+            return this;
+        }
+
+        /**
+         * Добавляет лимит, действующий для каждого ключа отдельно.
+         *
+         * @param permits  количество разрешений за окно
+         * @param window   длительность окна
+         * @param timeUnit единица измерения длительности окна
+         * @return построитель
+         */
+        public Builder<KEY, TASK, RESULT> limit(int permits, long window, TimeUnit timeUnit) {
+            rules.add(new TaskLimiter.LimitRule(permits, window, timeUnit));
+            return this;
+        }
+
+        /**
+         * Устанавливает индивидуальную квоту ключа. Ограничитель создается при первом обращении к ключу и
+         * проверяется вместе с правилами {@link #limit(int, long, TimeUnit)}.
+         *
+         * @param quota фабрика ограничителя ключа
+         * @return построитель
+         */
+        public Builder<KEY, TASK, RESULT> quota(Function<? super KEY, ? extends RateLimiter> quota) {
+            this.quota = quota;
+            return this;
+        }
+
+        /**
+         * Устанавливает количество полос реестра ключей (округляется до степени двойки).
+         *
+         * @param stripes количество полос
+         * @return построитель
+         */
+        public Builder<KEY, TASK, RESULT> stripes(int stripes) {
+            this.stripes = stripes;
+            return this;
+        }
+
+        /**
+         * Устанавливает время простоя, после которого ключ без задач удаляется из реестра. Время простоя не может
+         * быть короче самого длинного окна {@link #limit(int, long, TimeUnit)}. По умолчанию - 10 минут или самое
+         * длинное окно, если оно длиннее.
+         *
+         * @param idleTimeout время простоя
+         * @param timeUnit    единица измерения времени простоя
+         * @return построитель
+         */
+        public Builder<KEY, TASK, RESULT> idleTimeout(long idleTimeout, TimeUnit timeUnit) {
+            this.idleTimeout = idleTimeout;
+            this.idleTimeUnit = timeUnit;
+            return this;
+        }
+
+        /**
+         * Устанавливает функцию стоимости задачи в разрешениях, см. {@link TaskLimiter.Builder#cost(ToIntFunction)}.
+         * Стоимость расходуется из окон ключа.
+         *
+         * @param costFunction функция стоимости, возвращает значение больше нуля
+         * @return построитель
+         */
+        public Builder<KEY, TASK, RESULT> cost(ToIntFunction<TASK> costFunction) {
+            this.costFunction = costFunction;
+            return this;
+        }
+
+        /**
+         * Создает ограничитель и запускает обслуживающие потоки.
+         *
+         * @return ограничитель выполнения задач по ключам
+         */
+        public KeyedTaskLimiter<KEY, TASK, RESULT> build() {
+            return new KeyedTaskLimiter<>(this);
+        }
+
+        private long idleNanos() {
+            long longestWindow = rules.stream().mapToLong(TaskLimiter.LimitRule::windowNanos).max().orElse(0);
+            if (idleTimeout < 0) {
+                return Math.max(DEFAULT_IDLE_NANOS, longestWindow);
+            }
+            long nanos = idleTimeUnit.toNanos(idleTimeout);
+            if (nanos < longestWindow) {
+                throw new IllegalArgumentException("idleTimeout must not be shorter than the longest limit window");
+            }
+            return nanos;
+        }
+
+        private Function<KEY, CompositeRateLimiter> createLimiterFactory() {
+            List<TaskLimiter.LimitRule> keyRules = new ArrayList<>(rules);
+            Function<? super KEY, ? extends RateLimiter> keyQuota = quota;
+            RateLimiter.Strategy keyStrategy = strategy;
+            String nameBalancer = name;
+            return key -> {
+                List<RateLimiter> limiters = new ArrayList<>();
+                if (keyQuota != null) {
+                    limiters.add(keyQuota.apply(key));
+                }
+                return TaskLimiter.LimitRule.compose(nameBalancer + "_" + key, keyRules, keyStrategy, limiters);
+            };
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package ru.micode.limiter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ограниченное кольцо задач для нескольких производителей и одного потребителя без блокировок и без создания
+ * объектов на задачу.
+ *
+ * <p>Ячейки кольца выделяются один раз и переиспользуются: у каждой ячейки есть номер последовательности, по которому
+ * производитель узнает, что ячейка свободна, а потребитель - что она заполнена (очередь Вьюкова). Производители
+ * занимают позицию через CAS хвоста, потребитель двигает голову без синхронизации.
+ *
+ * @param <T> тип задачи
+ * @param <C> тип обработчика результата
+ */
+final class MpscRing<T, C> {
+
+    private final Object[] tasks;
+    private final Object[] callbacks;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final int mask;
+    private long head;
+
+    /**
+     * Конструктор.
+     *
+     * @param capacity емкость кольца, округляется вверх до степени двойки
+     */
+    MpscRing(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+        }
+        int size = capacity == 1
+            ? 1
+            : Integer.highestOneBit(capacity - 1) << 1;
+        this.tasks = new Object[size];
+        this.callbacks = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Кладет задачу в кольцо. Вызывается любым потоком.
+     *
+     * @param task     задача
+     * @param callback обработчик результата
+     * @return false, если кольцо заполнено
+     */
+    boolean offer(T task, C callback) {
+        long position;
+        while (true) {
+            position = tail.get();
+            long diff = sequences.get((int) position & mask) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+        int index = (int) position & mask;
+        tasks[index] = task;
+        callbacks[index] = callback;
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Проверяет, заполнена ли головная ячейка. Вызывается только потребителем.
+     *
+     * @return true, если в кольце есть задача
+     */
+    boolean isReady() {
+        return sequences.get((int) head & mask) == head + 1;
+    }
+
+    /**
+     * Возвращает задачу головной ячейки. Вызывается только потребителем после {@link #isReady()}.
+     *
+     * @return задача
+     */
+    @SuppressWarnings("unchecked")
+    T task() {
+        return (T) tasks[(int) head & mask];
+    }
+
+    /**
+     * Возвращает обработчик головной ячейки. Вызывается только потребителем после {@link #isReady()}.
+     *
+     * @return обработчик результата
+     */
+    @SuppressWarnings("unchecked")
+    C callback() {
+        return (C) callbacks[(int) head & mask];
+    }
+
+    /**
+     * Освобождает головную ячейку для производителей. Вызывается только потребителем после {@link #isReady()}.
+     */
+    void advance() {
+        int index = (int) head & mask;
+        tasks[index] = null;
+        callbacks[index] = null;
+        sequences.set(index, head + mask + 1);
+        head++;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
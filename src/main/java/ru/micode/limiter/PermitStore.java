@@ -0,0 +1,44 @@
+package ru.micode.limiter;
+
+/**
+ * Хранилище счетчиков разрешений, общее для нескольких ограничителей (и, в зависимости от реализации, для нескольких
+ * процессов).
+ *
+ * <p>Счетчики ведутся по фиксированным окнам, выровненным по {@link System#currentTimeMillis()}: монотонное время
+ * {@link System#nanoTime()} у разных процессов несравнимо. Ограничители ({@link SharedRateLimiter}) забирают
+ * разрешения блоками, поэтому хранилище опрашивается не на каждую задачу.
+ */
+public interface PermitStore {
+
+    /**
+     * Забирает до {@code requested} разрешений в текущем окне ключа.
+     *
+     * @param key          ключ общего лимита, например ключ API
+     * @param windowMillis длительность окна в миллисекундах
+     * @param limit        лимит разрешений за окно
+     * @param requested    запрошенное количество разрешений
+     * @return выданное количество разрешений, от 0 до {@code requested}
+     */
+    int lease(String key, long windowMillis, int limit, int requested);
+
+    /**
+     * Возвращает количество разрешений, еще не выданных в текущем окне ключа.
+     *
+     * @param key          ключ общего лимита
+     * @param windowMillis длительность окна в миллисекундах
+     * @param limit        лимит разрешений за окно
+     * @return количество разрешений, не меньше нуля
+     */
+    int remaining(String key, long windowMillis, int limit);
+
+    /**
+     * Возвращает номер окна для момента времени.
+     *
+     * @param timeMillis   время в миллисекундах от начала эпохи
+     * @param windowMillis длительность окна в миллисекундах
+     * @return номер окна
+     */
+    static long window(long timeMillis, long windowMillis) {
+        return timeMillis / windowMillis;
+    }
+}
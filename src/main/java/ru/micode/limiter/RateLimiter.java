@@ -0,0 +1,167 @@
+package ru.micode.limiter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ограничитель частоты, выдающий разрешения на выполнение задач.
+ */
+public interface RateLimiter {
+
+    /**
+     * Забирает разрешение, если лимит не исчерпан.
+     *
+     * @return true, если разрешение получено
+     */
+    boolean tryAcquire();
+
+    /**
+     * Забирает несколько разрешений сразу или не забирает ни одного. Реализация по умолчанию забирает разрешения по
+     * одному и возвращает полученные при отказе; счетчики переопределяют ее одной атомарной операцией.
+     *
+     * @param permits количество разрешений
+     * @return true, если разрешения получены
+     */
+    default boolean tryAcquire(int permits) {
+        for (int i = 0; i < permits; i++) {
+            if (!tryAcquire()) {
+                release(i);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Возвращает ранее полученное, но не использованное разрешение.
+     */
+    void release();
+
+    /**
+     * Возвращает несколько ранее полученных, но не использованных разрешений.
+     *
+     * @param permits количество разрешений
+     */
+    default void release(int permits) {
+        for (int i = 0; i < permits; i++) {
+            release();
+        }
+    }
+
+    /**
+     * Возвращает количество доступных разрешений.
+     *
+     * @return количество разрешений, не меньше нуля
+     */
+    int available();
+
+    /**
+     * Возвращает количество разрешений полностью пополненного ограничителя: больше этого количества за раз не выдается.
+     *
+     * @return количество разрешений, {@link Integer#MAX_VALUE} - если емкость не известна
+     */
+    default int maxPermits() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Проверяет, пополнен ли ограничитель полностью, то есть не хранит ли он расход разрешений. Ограничитель с
+     * неизвестной емкостью считается пополненным.
+     *
+     * @return true, если все разрешения доступны
+     */
+    default boolean isReplenished() {
+        return maxPermits() == Integer.MAX_VALUE || available() >= maxPermits();
+    }
+
+    /**
+     * Возвращает время до появления следующего разрешения.
+     *
+     * @return время ожидания в наносекундах, 0 - если разрешение доступно сейчас
+     */
+    long nanosToNextPermit();
+
+    /**
+     * Возвращает время до появления заданного количества разрешений без учета их расхода другими задачами.
+     *
+     * @param permits количество разрешений
+     * @return время ожидания в наносекундах, 0 - если разрешения доступны сейчас
+     */
+    default long nanosToPermits(int permits) {
+        return permits <= 1 || available() >= permits
+            ? nanosToNextPermit()
+            : Math.max(nanosToNextPermit(), 1);
+    }
+
+    /**
+     * Возвращает название ограничителя для лога.
+     *
+     * @return название ограничителя
+     */
+    String getName();
+
+    /**
+     * Проверяет, подстраивается ли ограничитель по результатам задач. Только для таких ограничителей замеряется время
+     * выполнения и вызывается {@link #onComplete(long, Throwable)}.
+     *
+     * @return true, если ограничитель адаптивный
+     */
+    default boolean isAdaptive() {
+        return false;
+    }
+
+    /**
+     * Сообщает ограничителю результат выполнения задачи, получившей разрешение.
+     *
+     * @param latencyNanos время выполнения задачи в наносекундах
+     * @param failure      исключение задачи или null, если задача выполнена успешно
+     */
+    default void onComplete(long latencyNanos, Throwable failure) {
+    }
+
+    /**
+     * Стратегия ограничения частоты.
+     */
+    enum Strategy {
+        /**
+         * Фиксированное окно ({@link TimeLimitCounter.Mode#FIXED_WINDOW}). На границе окон допускает до двух лимитов
+         * подряд.
+         */
+        FIXED_WINDOW,
+        /**
+         * Корзина токенов ({@link TimeLimitCounter.Mode#TOKEN_BUCKET}) с равномерным пополнением.
+         */
+        TOKEN_BUCKET,
+        /**
+         * Скользящее окно из корзин ({@link SlidingWindowCounter}), лимит соблюдается в любом окне с точностью до
+         * корзины.
+         */
+        SLIDING_WINDOW;
+
+        /**
+         * Создает ограничитель выбранной стратегии.
+         *
+         * @param name     название ограничителя для лога
+         * @param permits  количество разрешений за период
+         * @param period   период
+         * @param timeUnit единица измерения периода
+         * @return ограничитель
+         */
+        public RateLimiter create(String name, int permits, long period, TimeUnit timeUnit) {
+            switch (this) {
+                case SLIDING_WINDOW:
+                    SlidingWindowCounter sliding = new SlidingWindowCounter(permits, period, timeUnit);
+                    sliding.setNameCounter(name);
+                    return sliding;
+                case TOKEN_BUCKET:
+                    TimeLimitCounter bucket =
+                        new TimeLimitCounter(permits, period, timeUnit, TimeLimitCounter.Mode.TOKEN_BUCKET);
+                    bucket.setNameCounter(name);
+                    return bucket;
+                default:
+                    TimeLimitCounter window = new TimeLimitCounter(permits, period, timeUnit);
+                    window.setNameCounter(name);
+                    return window;
+            }
+        }
+    }
+}
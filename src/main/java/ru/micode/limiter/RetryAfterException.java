@@ -0,0 +1,60 @@
+package ru.micode.limiter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Исключение задачи, сообщающее, что внешний сервис просит повторить запрос не раньше указанного времени (например,
+ * HTTP 429 с заголовком Retry-After).
+ *
+ * <p>{@link AdaptiveRateLimiter} приостанавливает выдачу разрешений на это время и снижает частоту.
+ */
+public class RetryAfterException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+    private final long delayNanos;
+
+    /**
+     * Конструктор.
+     *
+     * @param delay    время, через которое можно повторить запрос
+     * @param timeUnit единица измерения времени
+     */
+    public RetryAfterException(long delay, TimeUnit timeUnit) {
+        this(delay, timeUnit, null);
+    }
+
+    /**
+     * Конструктор с причиной.
+     *
+     * @param delay    время, через которое можно повторить запрос
+     * @param timeUnit единица измерения времени
+     * @param cause    исходное исключение
+     */
+    public RetryAfterException(long delay, TimeUnit timeUnit, Throwable cause) {
+        super("Retry after " + timeUnit.toMillis(delay) + " ms", cause);
+        this.delayNanos = timeUnit.toNanos(delay);
+    }
+
+    public long getDelayNanos() {
+        return delayNanos;
+    }
+
+    /**
+     * Ищет исключение в цепочке причин.
+     *
+     * @param throwable исключение
+     * @return найденное исключение или null
+     */
+    static RetryAfterException find(Throwable throwable) {
+        Throwable current = throwable;
+        while (current != null) {
+            if (current instanceof RetryAfterException) {
+                return (RetryAfterException) current;
+            }
+            current = current.getCause() == current
+                ? null
+                : current.getCause();
+        }
+        return null;
+    }
+}
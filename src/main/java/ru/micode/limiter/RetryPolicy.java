@@ -0,0 +1,154 @@
+package ru.micode.limiter;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Политика повторного выполнения задачи, завершившейся исключением.
+ *
+ * <p>Задержка перед попыткой растет экспоненциально от {@code initialDelay} до {@code maxDelay}, и случайная доля
+ * задержки ({@code jitter}) вычитается из нее, чтобы повторы разных задач не приходились на один момент. Если
+ * исключение содержит {@link RetryAfterException}, задержка не меньше запрошенной сервисом. Повтор ожидает в
+ * планировщике ограничителя, не занимая рабочий поток, и возвращается в очередь на прежнее место.
+ */
+public final class RetryPolicy {
+
+    private final int maxAttempts;
+    private final long initialDelayNanos;
+    private final long maxDelayNanos;
+    private final double multiplier;
+    private final double jitter;
+    private final Predicate<Throwable> retryOn;
+
+    private RetryPolicy(Builder builder) {
+        if (builder.maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        if (builder.jitter < 0 || builder.jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+        this.maxAttempts = builder.maxAttempts;
+        this.initialDelayNanos = builder.initialDelayNanos;
+        this.maxDelayNanos = Math.max(builder.initialDelayNanos, builder.maxDelayNanos);
+        this.multiplier = builder.multiplier;
+        this.jitter = builder.jitter;
+        this.retryOn = builder.retryOn;
+    }
+
+    /**
+     * Создает построитель политики.
+     *
+     * @return построитель
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Проверяет, нужно ли повторить задачу.
+     *
+     * @param attempt номер завершившейся попытки, начиная с 1
+     * @param failure исключение попытки
+     * @return true, если задачу нужно повторить
+     */
+    boolean shouldRetry(int attempt, Throwable failure) {
+        return attempt < maxAttempts && retryOn.test(failure);
+    }
+
+    /**
+     * Вычисляет задержку перед следующей попыткой.
+     *
+     * @param attempt номер завершившейся попытки, начиная с 1
+     * @param failure исключение попытки
+     * @return задержка в наносекундах
+     */
+    long delayNanos(int attempt, Throwable failure) {
+        double backoff = Math.min(maxDelayNanos, initialDelayNanos * Math.pow(multiplier, attempt - 1));
+        long delay = (long) (backoff - backoff * jitter * ThreadLocalRandom.current().nextDouble());
+        RetryAfterException retryAfter = RetryAfterException.find(failure);
+        return retryAfter == null
+            ? delay
+            : Math.max(delay, retryAfter.getDelayNanos());
+    }
+
+    /**
+     * Построитель политики повторов.
+     */
+    public static class Builder {
+
+        private int maxAttempts = 3;
+        private long initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        private long maxDelayNanos = TimeUnit.SECONDS.toNanos(10);
+        private double multiplier = 2;
+        private double jitter = 0.5;
+        private Predicate<Throwable> retryOn = failure -> true;
+
+        /**
+         * Устанавливает наибольшее количество попыток, включая первую.
+         *
+         * @param maxAttempts количество попыток
+         * @return построитель
+         */
+        public Builder maxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Устанавливает экспоненциальную задержку между попытками.
+         *
+         * @param initialDelay задержка перед второй попыткой
+         * @param maxDelay     наибольшая задержка
+         * @param timeUnit     единица измерения задержек
+         * @return построитель
+         */
+        public Builder backoff(long initialDelay, long maxDelay, TimeUnit timeUnit) {
+            this.initialDelayNanos = timeUnit.toNanos(initialDelay);
+            this.maxDelayNanos = timeUnit.toNanos(maxDelay);
+            return this;
+        }
+
+        /**
+         * Устанавливает множитель роста задержки.
+         *
+         * @param multiplier множитель, по умолчанию 2
+         * @return построитель
+         */
+        public Builder multiplier(double multiplier) {
+            this.multiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * Устанавливает случайную долю задержки.
+         *
+         * @param jitter доля от 0 (без случайности) до 1 (задержка от нуля до расчетной)
+         * @return построитель
+         */
+        public Builder jitter(double jitter) {
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * Устанавливает исключения, после которых задача повторяется. По умолчанию повторяется после любого.
+         *
+         * @param retryOn классификатор исключений
+         * @return построитель
+         */
+        public Builder retryOn(Predicate<Throwable> retryOn) {
+            this.retryOn = retryOn;
+            return this;
+        }
+
+        /**
+         * Создает политику.
+         *
+         * @return политика повторов
+         */
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+}
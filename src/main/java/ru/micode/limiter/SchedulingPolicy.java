@@ -0,0 +1,81 @@
+package ru.micode.limiter;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Политика порядка выдачи задач из очереди {@link TaskLimiter}.
+ *
+ * <p>Задачи с равным приоритетом всегда выдаются в порядке поступления. Отложенная из-за лимита задача сохраняет
+ * свое место: ее порядковый номер и время поступления не меняются при возврате в очередь.
+ */
+public final class SchedulingPolicy {
+
+    private static final Comparator<TaskWrapper<?, ?>> PRIORITY_ORDER =
+        Comparator.<TaskWrapper<?, ?>>comparingInt(TaskWrapper::getPriority).reversed()
+            .thenComparingLong(TaskWrapper::getSequence);
+    private final Comparator<TaskWrapper<?, ?>> comparator;
+    private final Map<Integer, Integer> bandWeights;
+
+    private SchedulingPolicy(Comparator<TaskWrapper<?, ?>> comparator, Map<Integer, Integer> bandWeights) {
+        this.comparator = comparator;
+        this.bandWeights = bandWeights;
+    }
+
+    /**
+     * Строгий приоритет: задача с большим приоритетом выдается первой, равные - в порядке поступления.
+     *
+     * @return политика
+     */
+    public static SchedulingPolicy priority() {
+        return new SchedulingPolicy(PRIORITY_ORDER, null);
+    }
+
+    /**
+     * Приоритет со старением: каждый интервал ожидания в очереди засчитывается задаче как единица приоритета. Задача
+     * с низким приоритетом обгоняет новые задачи с более высоким приоритетом, прождав разницу приоритетов интервалов.
+     *
+     * @param interval интервал старения
+     * @param timeUnit единица измерения интервала
+     * @return политика
+     */
+    public static SchedulingPolicy aging(long interval, TimeUnit timeUnit) {
+        final long agingNanos = timeUnit.toNanos(interval);
+        if (agingNanos <= 0) {
+            throw new IllegalArgumentException("aging interval must be positive");
+        }
+        Comparator<TaskWrapper<?, ?>> comparator = Comparator
+            .<TaskWrapper<?, ?>>comparingLong(task -> task.getEnqueueNanos() - task.getPriority() * agingNanos)
+            .thenComparingLong(TaskWrapper::getSequence);
+        return new SchedulingPolicy(comparator, null);
+    }
+
+    /**
+     * Взвешенное справедливое обслуживание полос приоритетов: за круг полоса выдает не больше задач, чем ее вес.
+     * Порядок внутри полосы определяется этой политикой.
+     *
+     * @param bandWeights веса полос по минимальному приоритету полосы, например {0: 1, 5: 3, 10: 6}. Задачи с
+     *                    приоритетом ниже минимального попадают в младшую полосу.
+     * @return политика
+     */
+    public SchedulingPolicy weightedFair(Map<Integer, Integer> bandWeights) {
+        return new SchedulingPolicy(comparator, Collections.unmodifiableMap(new TreeMap<>(bandWeights)));
+    }
+
+    /**
+     * Создает очередь задач по политике.
+     *
+     * @param <E> тип задачи
+     * @return очередь
+     */
+    <E extends TaskWrapper<?, ?>> BlockingQueue<E> createQueue() {
+        return bandWeights == null
+            ? new PriorityBlockingQueue<>(11, comparator)
+            : new WeightedFairQueue<>(bandWeights, comparator);
+    }
+}
@@ -0,0 +1,194 @@
+package ru.micode.limiter;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ограничитель с фиксированным окном, лимит которого общий для всех ограничителей с тем же ключом и хранилищем
+ * ({@link PermitStore}), в том числе в разных процессах.
+ *
+ * <p>Разрешения забираются из хранилища блоками по {@code leaseSize} и выдаются задачам локально, поэтому общий
+ * счетчик затрагивается один раз на блок. Не израсходованные к концу окна разрешения блока пропадают: больший блок
+ * снижает нагрузку на хранилище, но при неравномерной нагрузке узлов может недорасходовать общий лимит.
+ */
+public class SharedRateLimiter implements RateLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedRateLimiter.class);
+    private final PermitStore store;
+    private final String key;
+    private final int limit;
+    private final long windowMillis;
+    private final int leaseSize;
+    private final String name;
+    private long leasedWindow = -1;
+    private int leased;
+
+    private SharedRateLimiter(Builder builder) {
+        if (builder.limit <= 0 || builder.windowMillis <= 0) {
+            throw new IllegalArgumentException("limit and window must be positive");
+        }
+        this.store = builder.store;
+        this.key = builder.key;
+        this.limit = builder.limit;
+        this.windowMillis = builder.windowMillis;
+        this.leaseSize = Math.max(1, Math.min(builder.leaseSize, builder.limit));
+        this.name = builder.name == null
+            ? key
+            : builder.name;
+    }
+
+    /**
+     * Создает построитель ограничителя.
+     *
+     * @param store хранилище счетчиков
+     * @param key   ключ общего лимита, например ключ API
+     * @return построитель
+     */
+    public static Builder builder(PermitStore store, String key) {
+        return new Builder(store, key);
+    }
+
+    @Override
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    /**
+     * Забирает разрешения из локального блока, дополняя его из хранилища. Если хранилище выдало меньше недостающего,
+     * полученные разрешения остаются в блоке для следующих задач.
+     *
+     * @param permits количество разрешений
+     * @return true, если разрешения получены
+     */
+    @Override
+    public synchronized boolean tryAcquire(int permits) {
+        long window = PermitStore.window(System.currentTimeMillis(), windowMillis);
+        if (window != leasedWindow) {
+            leasedWindow = window;
+            leased = 0;
+        }
+        if (leased < permits) {
+            int granted = store.lease(key, windowMillis, limit, Math.max(leaseSize, permits - leased));
+            logger.trace("{} leased {} permits", name, granted);
+            leased += granted;
+            if (leased < permits) {
+                return false;
+            }
+        }
+        leased -= permits;
+        return true;
+    }
+
+    @Override
+    public void release() {
+        release(1);
+    }
+
+    @Override
+    public synchronized void release(int permits) {
+        if (leasedWindow == PermitStore.window(System.currentTimeMillis(), windowMillis)) {
+            leased += permits;
+        }
+    }
+
+    @Override
+    public int available() {
+        int local;
+        synchronized (this) {
+            local = leasedWindow == PermitStore.window(System.currentTimeMillis(), windowMillis)
+                ? leased
+                : 0;
+        }
+        return local + store.remaining(key, windowMillis, limit);
+    }
+
+    @Override
+    public int maxPermits() {
+        return limit;
+    }
+
+    @Override
+    public long nanosToNextPermit() {
+        return nanosToPermits(1);
+    }
+
+    @Override
+    public long nanosToPermits(int permits) {
+        if (available() >= permits) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        long windowEnd = (PermitStore.window(now, windowMillis) + 1) * windowMillis;
+        return TimeUnit.MILLISECONDS.toNanos(windowEnd - now);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Построитель общего ограничителя.
+     */
+    public static class Builder {
+
+        private final PermitStore store;
+        private final String key;
+        private int limit;
+        private long windowMillis;
+        private int leaseSize = 1;
+        private String name;
+
+        Builder(PermitStore store, String key) {
+            this.store = store;
+            this.key = key;
+        }
+
+        /**
+         * Устанавливает общий лимит.
+         *
+         * @param permits  количество разрешений за окно на все ограничители ключа
+         * @param window   длительность окна
+         * @param timeUnit единица измерения длительности окна, не меньше миллисекунды
+         * @return построитель
+         */
+        public Builder limit(int permits, long window, TimeUnit timeUnit) {
+            this.limit = permits;
+            this.windowMillis = timeUnit.toMillis(window);
+            return this;
+        }
+
+        /**
+         * Устанавливает количество разрешений, забираемых из хранилища за одно обращение.
+         *
+         * @param leaseSize размер блока, не больше лимита
+         * @return построитель
+         */
+        public Builder leaseSize(int leaseSize) {
+            this.leaseSize = leaseSize;
+            return this;
+        }
+
+        /**
+         * Устанавливает название ограничителя для лога, по умолчанию - ключ.
+         *
+         * @param name название
+         * @return построитель
+         */
+        public Builder name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Создает ограничитель.
+         *
+         * @return общий ограничитель
+         */
+        public SharedRateLimiter build() {
+            return new SharedRateLimiter(this);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package ru.micode.limiter;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ограничитель со скользящим окном.
+ *
+ * <p>Окно делится на кольцевой буфер корзин фиксированного размера, каждая корзина хранит младшие 32 бита номера
+ * своего интервала и количество выданных разрешений в одном {@code long}. Возраст корзины вычисляется вычитанием с
+ * переполнением, поэтому переход номера интервала через границу {@code int} не сбрасывает окно. Память не зависит
+ * от количества запросов. Разрешение сначала резервируется в текущей корзине, затем проверяется сумма по окну; при
+ * превышении резерв откатывается. Поэтому лимит не превышается даже при конкурентном доступе, а при гонке на границе
+ * лимита возможен лишний отказ.
+ */
+public class SlidingWindowCounter implements RateLimiter {
+
+    /**
+     * Количество корзин в окне по умолчанию.
+     */
+    public static final int DEFAULT_BUCKETS = 10;
+    private static final Logger logger = LoggerFactory.getLogger(SlidingWindowCounter.class);
+    private static final long COUNTER_MASK = 0xFFFFFFFFL;
+    private final AtomicLongArray buckets;
+    private final int permits;
+    private final long bucketNanos;
+    private final long origin;
+    private volatile String nameCounter;
+
+    /**
+     * Конструктор с количеством корзин по умолчанию.
+     *
+     * @param permits  количество разрешений в окне
+     * @param window   длительность окна
+     * @param timeUnit единица измерения длительности окна
+     */
+    public SlidingWindowCounter(int permits, long window, TimeUnit timeUnit) {
+        this(permits, window, timeUnit, DEFAULT_BUCKETS);
+    }
+
+    /**
+     * Конструктор с параметрами.
+     *
+     * @param permits     количество разрешений в окне
+     * @param window      длительность окна
+     * @param timeUnit    единица измерения длительности окна
+     * @param bucketCount количество корзин, определяет точность скольжения окна
+     */
+    public SlidingWindowCounter(int permits, long window, TimeUnit timeUnit, int bucketCount) {
+        if (window <= 0 || bucketCount <= 0) {
+            throw new IllegalArgumentException("window and bucketCount must be positive");
+        }
+        this.permits = permits;
+        this.buckets = new AtomicLongArray(bucketCount);
+        this.bucketNanos = Math.max(1, timeUnit.toNanos(window) / bucketCount);
+        this.nameCounter = timeUnit.name();
+        this.origin = System.nanoTime();
+        // Корзины помечаются интервалом, который заведомо вне окна
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.set(i, pack(-bucketCount, 0));
+        }
+    }
+
+    /**
+     * Устанавливает название счетчика для лога.
+     *
+     * @param nameCounter наименование счетчика
+     */
+    public void setNameCounter(String nameCounter) {
+        Optional.ofNullable(nameCounter).ifPresent(name -> this.nameCounter = name);
+    }
+
+    @Override
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    @Override
+    public boolean tryAcquire(int count) {
+        long interval = interval();
+        int index = index(interval);
+        while (true) {
+            long current = buckets.get(index);
+            int value = age(interval, current) == 0
+                ? counter(current)
+                : 0;
+            if (buckets.compareAndSet(index, current, pack(interval, value + count))) {
+                break;
+            }
+        }
+        if (sum(interval) <= permits) {
+            return true;
+        }
+        logger.trace("sliding window {} limit exceeded", this.nameCounter);
+        rollback(index, interval, count);
+        return false;
+    }
+
+    @Override
+    public void release() {
+        release(1);
+    }
+
+    @Override
+    public void release(int count) {
+        long interval = interval();
+        int remaining = count;
+        for (int i = 0; i < buckets.length() && remaining > 0; i++) {
+            remaining -= rollback(index(interval - i), interval - i, remaining);
+        }
+    }
+
+    @Override
+    public int available() {
+        return Math.max(0, permits - sum(interval()));
+    }
+
+    @Override
+    public int maxPermits() {
+        return Math.max(0, permits);
+    }
+
+    @Override
+    public long nanosToNextPermit() {
+        long now = System.nanoTime() - origin;
+        long interval = now / bucketNanos;
+        if (sum(interval) < permits) {
+            return 0;
+        }
+        // Ближайшее освобождение - выход из окна самой старой непустой корзины
+        int oldest = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            long current = buckets.get(i);
+            int age = age(interval, current);
+            if (age >= 0 && age < buckets.length() && counter(current) > 0) {
+                oldest = Math.max(oldest, age);
+            }
+        }
+        return Math.max(0, (interval - oldest + buckets.length()) * bucketNanos - now);
+    }
+
+    @Override
+    public long nanosToPermits(int count) {
+        if (count > permits) {
+            return (long) buckets.length() * bucketNanos;
+        }
+        long now = System.nanoTime() - origin;
+        long interval = now / bucketNanos;
+        int excess = sum(interval) + count - permits;
+        // Разрешения освобождаются по мере выхода корзин из окна, начиная с самой старой
+        for (int age = buckets.length() - 1; age >= 0 && excess > 0; age--) {
+            long current = buckets.get(index(interval - age));
+            if (age(interval, current) == age) {
+                excess -= counter(current);
+                if (excess <= 0) {
+                    return Math.max(0, (interval - age + buckets.length()) * bucketNanos - now);
+                }
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String getName() {
+        return nameCounter;
+    }
+
+    /**
+     * Возвращает разрешения из корзины интервала.
+     *
+     * @param index    индекс корзины
+     * @param interval интервал корзины
+     * @param count    наибольшее количество разрешений
+     * @return количество возвращенных разрешений
+     */
+    private int rollback(int index, long interval, int count) {
+        while (true) {
+            long current = buckets.get(index);
+            if (age(interval, current) != 0 || counter(current) <= 0) {
+                return 0;
+            }
+            int returned = Math.min(count, counter(current));
+            if (buckets.compareAndSet(index, current, pack(interval, counter(current) - returned))) {
+                return returned;
+            }
+        }
+    }
+
+    private int sum(long interval) {
+        int total = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            long current = buckets.get(i);
+            int age = age(interval, current);
+            if (age >= 0 && age < buckets.length()) {
+                total += counter(current);
+            }
+        }
+        return total;
+    }
+
+    private long interval() {
+        return (System.nanoTime() - origin) / bucketNanos;
+    }
+
+    private int index(long interval) {
+        return Math.floorMod(interval, buckets.length());
+    }
+
+    /**
+     * Возвращает возраст корзины в интервалах. Номера интервалов сравниваются по младшим 32 битам вычитанием с
+     * переполнением, что верно для корзин моложе 2^31 интервалов.
+     *
+     * @param interval текущий интервал
+     * @param state    состояние корзины
+     * @return возраст корзины, отрицательный для корзины из будущего интервала
+     */
+    private static int age(long interval, long state) {
+        return (int) interval - bucketInterval(state);
+    }
+
+    private static long pack(long interval, int counter) {
+        return (interval << 32) | (counter & COUNTER_MASK);
+    }
+
+    private static int bucketInterval(long state) {
+        return (int) (state >>> 32);
+    }
+
+    private static int counter(long state) {
+        return (int) state;
+    }
+}
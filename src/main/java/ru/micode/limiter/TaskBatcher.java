@@ -0,0 +1,328 @@
+package ru.micode.limiter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Накопитель задач для пакетной обработки.
+ *
+ * <p>Задачи накапливаются, пока их не станет {@code maxBatchSize} или пока не истечет время ожидания с момента
+ * первой задачи пакета. Затем пакет ставится в очередь {@link TaskLimiter} одной задачей с наибольшим приоритетом
+ * из входящих в него и расходует одно разрешение на пакет ({@link Permits#PER_BATCH}) или сумму стоимостей задач
+ * ({@link Permits#PER_ITEM}, см. {@link TaskLimiter.Builder#cost}). Пакет, стоимость которого больше лимита самого
+ * узкого окна, никогда не получит разрешения и отклоняется сразу.
+ *
+ * <p>Закрытый ограничитель не принимает задачи в накопитель. При {@link TaskLimiter#drain(long, TimeUnit)}
+ * накопленные пакеты ставятся в очередь, а при остановке ограничителя их задачи завершаются
+ * {@code CancellationException}.
+ *
+ * @param <TASK>   тип задачи
+ * @param <RESULT> тип результата
+ */
+public class TaskBatcher<TASK, RESULT> {
+
+    private static final Logger logger = LoggerFactory.getLogger(TaskBatcher.class);
+    private final TaskLimiter<TASK, RESULT> taskLimiter;
+    private final BatchProcess<TASK, RESULT> batchProcess;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final Permits permits;
+    private final Object lock = new Object();
+    private List<TaskWrapper<TASK, RESULT>> pending;
+    private ScheduledFuture<?> lingerFuture;
+
+    private TaskBatcher(Builder<TASK, RESULT> builder) {
+        if (builder.maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        this.taskLimiter = builder.taskLimiter;
+        this.batchProcess = builder.batchProcess;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.lingerNanos = builder.lingerUnit.toNanos(builder.linger);
+        this.permits = builder.permits;
+        this.pending = new ArrayList<>(maxBatchSize);
+    }
+
+    /**
+     * Добавляет задачу в текущий пакет. Если ограничитель закрыт, задача завершается
+     * {@link RejectedExecutionException}.
+     *
+     * @param task     задача
+     * @param priority значение приоритета
+     * @return обертка задачи, завершается после обработки пакета
+     */
+    public TaskWrapper<TASK, RESULT> createTask(TASK task, int priority) {
+        TaskWrapper<TASK, RESULT> taskWrapper = new TaskWrapper<>(task, priority, null, new CompletableFuture<>());
+        List<TaskWrapper<TASK, RESULT>> batch = null;
+        boolean accepted;
+        // Проверка под блокировкой: остановка ограничителя отменяет пакет под той же блокировкой
+        synchronized (lock) {
+            accepted = taskLimiter.isAccepting();
+            if (accepted) {
+                pending.add(taskWrapper);
+                if (pending.size() >= maxBatchSize || (pending.size() == 1 && !scheduleFlush())) {
+                    batch = takePending();
+                }
+            }
+        }
+        if (!accepted) {
+            taskWrapper.exceptionally(new RejectedExecutionException("Limiter is closed"));
+        } else if (batch != null) {
+            submit(batch);
+        }
+        return taskWrapper;
+    }
+
+    /**
+     * Добавляет задачи в пакеты с одинаковым приоритетом.
+     *
+     * @param tasks    задачи
+     * @param priority значение приоритета
+     * @return обертки задач в порядке коллекции
+     */
+    public List<TaskWrapper<TASK, RESULT>> createTasks(Collection<? extends TASK> tasks, int priority) {
+        List<TaskWrapper<TASK, RESULT>> taskWrappers = new ArrayList<>(tasks.size());
+        for (TASK task : tasks) {
+            taskWrappers.add(createTask(task, priority));
+        }
+        return taskWrappers;
+    }
+
+    /**
+     * Немедленно ставит в очередь накопленный пакет, не дожидаясь его заполнения.
+     */
+    public void flush() {
+        List<TaskWrapper<TASK, RESULT>> batch;
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = takePending();
+        }
+        submit(batch);
+    }
+
+    /**
+     * Завершает задачи накопленного пакета исключением.
+     *
+     * @param cause причина отмены
+     */
+    void cancel(Throwable cause) {
+        List<TaskWrapper<TASK, RESULT>> batch;
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = takePending();
+        }
+        logger.info("{} batched tasks cancelled", batch.size());
+        batch.forEach(taskWrapper -> taskWrapper.exceptionally(cause));
+    }
+
+    private boolean scheduleFlush() {
+        try {
+            lingerFuture = taskLimiter.getScheduler().schedule(this::flush, lingerNanos, TimeUnit.NANOSECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            logger.debug("linger flush rejected, submit batch immediately");
+            return false;
+        }
+    }
+
+    private List<TaskWrapper<TASK, RESULT>> takePending() {
+        List<TaskWrapper<TASK, RESULT>> batch = pending;
+        pending = new ArrayList<>(maxBatchSize);
+        if (lingerFuture != null) {
+            lingerFuture.cancel(false);
+            lingerFuture = null;
+        }
+        return batch;
+    }
+
+    private void submit(List<TaskWrapper<TASK, RESULT>> batch) {
+        logger.trace("submit batch of {} tasks", batch.size());
+        taskLimiter.submit(new BatchTaskWrapper<>(batch, batchProcess, permits == Permits.PER_ITEM
+            ? cost(batch)
+            : 1));
+    }
+
+    private int cost(List<TaskWrapper<TASK, RESULT>> batch) {
+        long cost = 0;
+        for (TaskWrapper<TASK, RESULT> taskWrapper : batch) {
+            cost += taskLimiter.cost(taskWrapper.getTask());
+        }
+        return (int) Math.min(cost, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Интерфейс пакетной обработки задач.
+     *
+     * @param <T> тип задачи
+     * @param <R> тип результата
+     */
+    public interface BatchProcess<T, R> {
+        Map<T, R> runBatch(Collection<T> tasks) throws InterruptedException;
+    }
+
+    /**
+     * Расход разрешений пакетом.
+     */
+    public enum Permits {
+        /**
+         * Одно разрешение на пакет, подходит для API, считающих пакетный запрос одним запросом.
+         */
+        PER_BATCH,
+        /**
+         * Сумма стоимостей задач пакета, по разрешению на задачу без функции стоимости.
+         */
+        PER_ITEM
+    }
+
+    /**
+     * Пакет задач в очереди ограничителя.
+     *
+     * @param <T> тип задачи
+     * @param <R> тип результата
+     */
+    private static final class BatchTaskWrapper<T, R> extends TaskWrapper<T, R> {
+
+        private final List<TaskWrapper<T, R>> batch;
+        private final BatchProcess<T, R> batchProcess;
+        private final int permits;
+
+        BatchTaskWrapper(List<TaskWrapper<T, R>> batch, BatchProcess<T, R> batchProcess, int permits) {
+            super(null, maxPriority(batch), null, new CompletableFuture<>());
+            this.batch = batch;
+            this.batchProcess = batchProcess;
+            this.permits = permits;
+        }
+
+        private static int maxPriority(List<? extends TaskWrapper<?, ?>> batch) {
+            int priority = Integer.MIN_VALUE;
+            for (TaskWrapper<?, ?> taskWrapper : batch) {
+                priority = Math.max(priority, taskWrapper.getPriority());
+            }
+            return priority;
+        }
+
+        @Override
+        public void run() {
+            List<T> tasks = new ArrayList<>(batch.size());
+            for (TaskWrapper<T, R> taskWrapper : batch) {
+                if (!taskWrapper.isDone()) {
+                    tasks.add(taskWrapper.getTask());
+                }
+            }
+            if (tasks.isEmpty()) {
+                complete(null);
+                return;
+            }
+            Map<T, R> results;
+            try {
+                results = batchProcess.runBatch(Collections.unmodifiableList(tasks));
+            } catch (Exception e) {
+                exceptionally(e);
+                return;
+            }
+            for (TaskWrapper<T, R> taskWrapper : batch) {
+                if (taskWrapper.isDone()) {
+                    continue;
+                }
+                if (results != null && results.containsKey(taskWrapper.getTask())) {
+                    taskWrapper.complete(results.get(taskWrapper.getTask()));
+                } else {
+                    taskWrapper.exceptionally("No result for task in batch");
+                }
+            }
+            complete(null);
+        }
+
+        @Override
+        public void exceptionally(Throwable throwable) {
+            batch.forEach(taskWrapper -> taskWrapper.exceptionally(throwable));
+            super.exceptionally(throwable);
+        }
+
+        @Override
+        int getPermits() {
+            return permits;
+        }
+    }
+
+    /**
+     * Построитель накопителя.
+     *
+     * @param <TASK>   тип задачи
+     * @param <RESULT> тип результата
+     */
+    public static class Builder<TASK, RESULT> {
+
+        private final TaskLimiter<TASK, RESULT> taskLimiter;
+        private final BatchProcess<TASK, RESULT> batchProcess;
+        private int maxBatchSize = 100;
+        private long linger = 10;
+        private TimeUnit lingerUnit = TimeUnit.MILLISECONDS;
+        private Permits permits = Permits.PER_BATCH;
+
+        Builder(TaskLimiter<TASK, RESULT> taskLimiter, BatchProcess<TASK, RESULT> batchProcess) {
+            this.taskLimiter = taskLimiter;
+            this.batchProcess = batchProcess;
+        }
+
+        /**
+         * Устанавливает наибольший размер пакета.
+         *
+         * @param maxBatchSize количество задач в пакете
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> maxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * Устанавливает наибольшее время накопления пакета с момента первой задачи.
+         *
+         * @param linger   время накопления
+         * @param timeUnit единица измерения времени накопления
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> linger(long linger, TimeUnit timeUnit) {
+            this.linger = linger;
+            this.lingerUnit = timeUnit;
+            return this;
+        }
+
+        /**
+         * Устанавливает расход разрешений пакетом.
+         *
+         * @param permits расход разрешений
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> permits(Permits permits) {
+            this.permits = permits;
+            return this;
+        }
+
+        /**
+         * Создает накопитель.
+         *
+         * @return накопитель задач
+         */
+        public TaskBatcher<TASK, RESULT> build() {
+            TaskBatcher<TASK, RESULT> batcher = new TaskBatcher<>(this);
+            taskLimiter.register(batcher);
+            return batcher;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package ru.micode.limiter;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.micode.metrics.MetricSet;
+
+/**
+ * Слой перед {@link TaskLimiter}, объединяющий одинаковые задачи и кеширующий их результаты.
+ *
+ * <p>Задачи сравниваются по {@code equals}/{@code hashCode}. Пока задача выполняется или ожидает в очереди, такая же
+ * новая задача не ставится в очередь, а получает результат первой. Успешный результат хранится в кеше не дольше
+ * {@code ttl}, кеш ограничен {@code maximumSize} записями и вытесняет давно не читанные. Задачи из кеша и
+ * объединенные задачи не расходуют разрешения. Предполагается, что одинаковые задачи обрабатываются одинаково:
+ * обработчик и приоритет повторной задачи не учитываются.
+ *
+ * <p>Каждый вызов получает собственную обертку, связанную с общей задачей в очереди. Отмена или таймаут ожидания
+ * обертки затрагивает только ее; общая задача убирается из очереди, когда результат больше никто не ждет, а уже
+ * запущенная задача выполняется до конца.
+ *
+ * @param <TASK>   тип задачи
+ * @param <RESULT> тип результата
+ */
+public class TaskCoalescer<TASK, RESULT> implements MetricSet {
+
+    private static final Logger logger = LoggerFactory.getLogger(TaskCoalescer.class);
+    private final TaskLimiter<TASK, RESULT> taskLimiter;
+    private final ConcurrentHashMap<TASK, Shared<TASK, RESULT>> inFlight = new ConcurrentHashMap<>();
+    private final ResultCache<TASK, RESULT> cache;
+    private final long ttlNanos;
+    private final String name;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    private TaskCoalescer(Builder<TASK, RESULT> builder) {
+        if (builder.maximumSize < 0) {
+            throw new IllegalArgumentException("maximumSize must not be negative");
+        }
+        this.taskLimiter = builder.taskLimiter;
+        this.ttlNanos = builder.ttlNanos;
+        this.name = builder.name;
+        this.cache = new ResultCache<>(builder.maximumSize);
+    }
+
+    /**
+     * Возвращает результат из кеша, присоединяет задачу к такой же выполняемой или ставит ее в очередь.
+     *
+     * @param task        задача
+     * @param priority    значение приоритета
+     * @param taskProcess интерфейс обработки задачи
+     * @return обертка задачи
+     */
+    public TaskWrapper<TASK, RESULT> createTask(TASK task, int priority,
+                                                TaskLimiter.TaskProcess<TASK, RESULT> taskProcess) {
+        CachedResult<RESULT> cached = lookup(task);
+        if (cached != null) {
+            hits.increment();
+            return new TaskWrapper<>(task, priority, null, CompletableFuture.completedFuture(cached.result));
+        }
+        misses.increment();
+        final Shared<TASK, RESULT> shared = inFlight.compute(task, (key, current) -> {
+            if (current == null) {
+                return new Shared<>(new TaskWrapper<>(task, priority, taskProcess, new CompletableFuture<>()));
+            }
+            current.waiting++;
+            return current;
+        });
+        TaskWrapper<TASK, RESULT> follower = new TaskWrapper<>(task, priority, null, new CompletableFuture<>());
+        shared.task.whenComplete((result, failure) -> {
+            if (failure == null) {
+                follower.complete(result);
+            } else {
+                follower.exceptionally(failure);
+            }
+        });
+        follower.whenDone(() -> leave(task, shared));
+        if (shared.submitted.compareAndSet(false, true)) {
+            shared.task.whenComplete((result, failure) -> completed(task, shared, result, failure));
+            taskLimiter.submit(shared.task);
+        } else {
+            logger.trace("coalesce task with priority {}", priority);
+            coalesced.increment();
+        }
+        return follower;
+    }
+
+    /**
+     * Снимает обертку с ожидания общей задачи. Если результат больше никто не ждет, еще не запущенная общая задача
+     * убирается из очереди.
+     *
+     * @param task   задача
+     * @param shared общая задача
+     */
+    private void leave(TASK task, Shared<TASK, RESULT> shared) {
+        if (shared.task.isDone()) {
+            return;
+        }
+        inFlight.computeIfPresent(task, (key, current) -> {
+            if (current == shared && --current.waiting == 0) {
+                return null;
+            }
+            return current;
+        });
+        if (shared.waiting == 0 && shared.task.expire()) {
+            logger.trace("coalesced task abandoned by all callers");
+        }
+    }
+
+    private void completed(TASK task, Shared<TASK, RESULT> shared, RESULT result, Throwable failure) {
+        // Результат попадает в кеш до снятия задачи с выполнения, чтобы повторная задача не разминулась с обоими
+        if (failure == null && ttlNanos > 0) {
+            synchronized (cache) {
+                cache.put(task, new CachedResult<>(result, System.nanoTime() + ttlNanos));
+            }
+        }
+        inFlight.remove(task, shared);
+    }
+
+    private CachedResult<RESULT> lookup(TASK task) {
+        if (ttlNanos <= 0) {
+            return null;
+        }
+        synchronized (cache) {
+            CachedResult<RESULT> cached = cache.get(task);
+            if (cached == null) {
+                return null;
+            }
+            if (System.nanoTime() - cached.expiresNanos >= 0) {
+                cache.remove(task);
+                return null;
+            }
+            return cached;
+        }
+    }
+
+    /**
+     * Очищает кеш результатов.
+     */
+    public void invalidateAll() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public String getType() {
+        return "TaskCoalescer";
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        snapshot.put("hits", hits.sum());
+        snapshot.put("misses", misses.sum());
+        snapshot.put("coalesced", coalesced.sum());
+        snapshot.put("inFlight", inFlight.size());
+        synchronized (cache) {
+            snapshot.put("cacheSize", cache.size());
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * Общая задача в очереди и количество ожидающих ее оберток. Счетчик изменяется только внутри вычислений
+     * {@link ConcurrentHashMap} по ключу задачи.
+     *
+     * @param <T> тип задачи
+     * @param <R> тип результата
+     */
+    private static final class Shared<T, R> {
+
+        private final TaskWrapper<T, R> task;
+        private final AtomicBoolean submitted = new AtomicBoolean();
+        private volatile int waiting = 1;
+
+        Shared(TaskWrapper<T, R> task) {
+            this.task = task;
+        }
+    }
+
+    /**
+     * Результат в кеше.
+     *
+     * @param <R> тип результата
+     */
+    private static final class CachedResult<R> {
+
+        private final R result;
+        private final long expiresNanos;
+
+        CachedResult(R result, long expiresNanos) {
+            this.result = result;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    /**
+     * Кеш с вытеснением давно не читанных записей. Доступ синхронизируется владельцем.
+     *
+     * @param <K> тип задачи
+     * @param <R> тип результата
+     */
+    private static final class ResultCache<K, R> extends LinkedHashMap<K, CachedResult<R>> {
+
+        private static final long serialVersionUID = 1L;
+        private final int maximumSize;
+
+        ResultCache(int maximumSize) {
+            super(16, 0.75f, true);
+            this.maximumSize = maximumSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, CachedResult<R>> eldest) {
+            return size() > maximumSize;
+        }
+    }
+
+    /**
+     * Построитель слоя объединения задач.
+     *
+     * @param <TASK>   тип задачи
+     * @param <RESULT> тип результата
+     */
+    public static class Builder<TASK, RESULT> {
+
+        private final TaskLimiter<TASK, RESULT> taskLimiter;
+        private int maximumSize = 1000;
+        private long ttlNanos;
+        private String name = "default";
+
+        Builder(TaskLimiter<TASK, RESULT> taskLimiter) {
+            this.taskLimiter = taskLimiter;
+        }
+
+        /**
+         * Устанавливает наибольшее количество результатов в кеше.
+         *
+         * @param maximumSize количество результатов
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> maximumSize(int maximumSize) {
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * Включает кеш результатов с временем жизни. По умолчанию кеш выключен и объединяются только выполняемые
+         * задачи.
+         *
+         * @param ttl      время жизни результата
+         * @param timeUnit единица измерения времени жизни
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> ttl(long ttl, TimeUnit timeUnit) {
+            this.ttlNanos = timeUnit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * Устанавливает название для метрик.
+         *
+         * @param name название
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Создает слой объединения задач.
+         *
+         * @return слой объединения задач
+         */
+        public TaskCoalescer<TASK, RESULT> build() {
+            return new TaskCoalescer<>(this);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package ru.micode.limiter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ограничитель для задач без ожидания результата или с обработчиком результата, рассчитанный на высокую частоту
+ * поступления задач.
+ *
+ * <p>В отличие от {@link TaskLimiter} задача не оборачивается в {@link TaskWrapper} с Future: задача и обработчик
+ * кладутся в переиспользуемые ячейки кольца ({@link MpscRing}) своей полосы приоритетов без блокировок и без
+ * создания объектов. Единственный поток диспетчера выбирает задачу из старшей непустой полосы, ждет разрешения
+ * ограничителя и выполняет задачу в своем потоке, поэтому обработка должна быть короткой и неблокирующей. Задачи
+ * с длительной обработкой выполняйте в {@link TaskLimiter} в режиме диспетчера.
+ *
+ * <p>Внутри полосы задачи выполняются в порядке поступления, полосы обслуживаются строго по старшинству. Если кольцо
+ * полосы заполнено, {@link #offer(Object, int, Callback)} возвращает false.
+ *
+ * @param <TASK>   тип задачи
+ * @param <RESULT> тип результата
+ */
+public class TaskDispatcher<TASK, RESULT> {
+
+    private static final Logger logger = LoggerFactory.getLogger(TaskDispatcher.class);
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private final TaskLimiter.TaskProcess<TASK, RESULT> process;
+    private final CompositeRateLimiter limiter;
+    private final int[] bandPriorities;
+    private final List<MpscRing<TASK, Callback<TASK, RESULT>>> rings;
+    private final Thread thread;
+    private final AtomicInteger offering = new AtomicInteger();
+    private volatile boolean work = true;
+    private volatile boolean parked;
+
+    private TaskDispatcher(Builder<TASK, RESULT> builder) {
+        this.process = builder.process;
+        this.limiter = TaskLimiter.LimitRule.compose(builder.name, builder.rules, builder.strategy, builder.limiters);
+        this.bandPriorities = Arrays.stream(builder.bands).boxed()
+            .sorted((left, right) -> Integer.compare(right, left))
+            .mapToInt(Integer::intValue)
+            .distinct()
+            .toArray();
+        this.rings = new ArrayList<>(bandPriorities.length);
+        for (int i = 0; i < bandPriorities.length; i++) {
+            rings.add(new MpscRing<>(builder.ringSize));
+        }
+        this.thread = new Thread(this::runDispatcher);
+        thread.setName("dispatcher-" + builder.name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Создает построитель диспетчера.
+     *
+     * @param process обработка задачи, общая для всех задач диспетчера
+     * @param <T>     тип задачи
+     * @param <R>     тип результата
+     * @return построитель
+     */
+    public static <T, R> Builder<T, R> builder(TaskLimiter.TaskProcess<T, R> process) {
+        return new Builder<>(process);
+    }
+
+    /**
+     * Ставит задачу в кольцо полосы ее приоритета. Не создает объектов, если обработчик не создается на каждый
+     * вызов.
+     *
+     * @param task     задача
+     * @param priority значение приоритета
+     * @param callback обработчик результата или null, если результат не нужен
+     * @return false, если кольцо полосы заполнено или диспетчер остановлен
+     */
+    public boolean offer(TASK task, int priority, Callback<TASK, RESULT> callback) {
+        // Счетчик публикующих производителей не дает диспетчеру завершиться между проверкой work и публикацией
+        offering.incrementAndGet();
+        try {
+            if (!work || !rings.get(band(priority)).offer(task, callback)) {
+                return false;
+            }
+        } finally {
+            offering.decrementAndGet();
+        }
+        if (parked) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    private int band(int priority) {
+        for (int i = 0; i < bandPriorities.length; i++) {
+            if (priority >= bandPriorities[i]) {
+                return i;
+            }
+        }
+        return bandPriorities.length - 1;
+    }
+
+    /**
+     * Останавливает диспетчер. Задачи, оставшиеся в кольцах, завершаются {@link CancellationException}.
+     */
+    public void shutdown() {
+        work = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void runDispatcher() {
+        while (work) {
+            MpscRing<TASK, Callback<TASK, RESULT>> ring = nextRing();
+            if (ring == null) {
+                idle();
+            } else if (limiter.tryAcquire()) {
+                TASK task = ring.task();
+                Callback<TASK, RESULT> callback = ring.callback();
+                ring.advance();
+                run(task, callback);
+            } else {
+                LockSupport.parkNanos(this, Math.max(limiter.nanosToNextPermit(), MIN_PARK_NANOS));
+            }
+        }
+        cancelRemaining();
+        // Производитель, прошедший проверку work до остановки, мог еще не опубликовать задачу
+        while (offering.get() != 0) {
+            Thread.yield();
+        }
+        cancelRemaining();
+    }
+
+    private MpscRing<TASK, Callback<TASK, RESULT>> nextRing() {
+        for (int i = 0; i < rings.size(); i++) {
+            MpscRing<TASK, Callback<TASK, RESULT>> ring = rings.get(i);
+            if (ring.isReady()) {
+                return ring;
+            }
+        }
+        return null;
+    }
+
+    private void idle() {
+        parked = true;
+        // Повторная проверка после объявления ожидания: производитель, положивший задачу раньше, не разбудит поток
+        if (nextRing() == null && work) {
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        parked = false;
+    }
+
+    private void run(TASK task, Callback<TASK, RESULT> callback) {
+        RESULT result;
+        try {
+            result = process.runTask(task);
+        } catch (Exception e) {
+            complete(task, null, e, callback);
+            return;
+        }
+        complete(task, result, null, callback);
+    }
+
+    private void complete(TASK task, RESULT result, Exception failure, Callback<TASK, RESULT> callback) {
+        if (callback == null) {
+            if (failure != null) {
+                logger.debug("task failed: {}", failure.toString());
+            }
+            return;
+        }
+        try {
+            callback.onComplete(task, result, failure);
+        } catch (Exception e) {
+            logger.error("an error in task callback", e);
+        }
+    }
+
+    private void cancelRemaining() {
+        CancellationException cancelled = new CancellationException("dispatcher stopped");
+        MpscRing<TASK, Callback<TASK, RESULT>> ring;
+        while ((ring = nextRing()) != null) {
+            TASK task = ring.task();
+            Callback<TASK, RESULT> callback = ring.callback();
+            ring.advance();
+            complete(task, null, cancelled, callback);
+        }
+    }
+
+    /**
+     * Обработчик результата задачи, вызывается в потоке диспетчера.
+     *
+     * @param <T> тип задачи
+     * @param <R> тип результата
+     */
+    public interface Callback<T, R> {
+        void onComplete(T task, R result, Exception failure);
+    }
+
+    /**
+     * Построитель диспетчера.
+     *
+     * @param <TASK>   тип задачи
+     * @param <RESULT> тип результата
+     */
+    public static class Builder<TASK, RESULT> {
+
+        private final TaskLimiter.TaskProcess<TASK, RESULT> process;
+        private final List<TaskLimiter.LimitRule> rules = new ArrayList<>();
+        private final List<RateLimiter> limiters = new ArrayList<>();
+        private RateLimiter.Strategy strategy = RateLimiter.Strategy.FIXED_WINDOW;
+        private String name = "default";
+        private int ringSize = 1024;
+        private int[] bands = {0};
+
+        Builder(TaskLimiter.TaskProcess<TASK, RESULT> process) {
+            this.process = process;
+        }
+
+        /**
+         * Устанавливает название диспетчера для лога и имени потока.
+         *
+         * @param name название
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Устанавливает емкость кольца каждой полосы.
+         *
+         * @param ringSize емкость, округляется вверх до степени двойки
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> ringSize(int ringSize) {
+            this.ringSize = ringSize;
+            return this;
+        }
+
+        /**
+         * Устанавливает полосы приоритетов по минимальному приоритету полосы. Задачи с приоритетом ниже минимального
+         * попадают в младшую полосу. По умолчанию одна полоса.
+         *
+         * @param minPriorities минимальные приоритеты полос
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> bands(int... minPriorities) {
+            if (minPriorities.length == 0) {
+                throw new IllegalArgumentException("at least one band is required");
+            }
+            this.bands = minPriorities.clone();
+            return this;
+        }
+
+        /**
+         * Устанавливает стратегию ограничения частоты для окон, заданных {@link #limit(int, long, TimeUnit)}.
+         *
+         * @param strategy стратегия ограничения
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> strategy(RateLimiter.Strategy strategy) {
+            this.strategy = strategy;
+            return this;
+        }
+
+        /**
+         * Добавляет окно лимита.
+         *
+         * @param permits  количество разрешений за окно
+         * @param window   длительность окна
+         * @param timeUnit единица измерения длительности окна
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> limit(int permits, long window, TimeUnit timeUnit) {
+            rules.add(new TaskLimiter.LimitRule(permits, window, timeUnit));
+            return this;
+        }
+
+        /**
+         * Добавляет собственный ограничитель. Он опрашивается после окон, заданных правилами.
+         *
+         * @param rateLimiter ограничитель
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> limiter(RateLimiter rateLimiter) {
+            limiters.add(rateLimiter);
+            return this;
+        }
+
+        /**
+         * Создает диспетчер и запускает его поток.
+         *
+         * @return диспетчер
+         */
+        public TaskDispatcher<TASK, RESULT> build() {
+            return new TaskDispatcher<>(this);
+        }
+    }
+}
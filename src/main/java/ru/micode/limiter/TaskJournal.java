@@ -0,0 +1,386 @@
+package ru.micode.limiter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Журнал отложенных задач {@link TaskLimiter}, переживающий перезапуск.
+ *
+ * <p>Журнал - последовательность сегментов фиксированного размера, отображенных в память. Записи только дописываются
+ * в конец: длина, приоритет и байты задачи ({@link TaskSerializer}). Запись определяется своим положением в журнале и
+ * может быть прочитана в любом порядке: прочитанная запись отмечается отрицательной длиной, голова журнала в
+ * отдельном файле переносится через прочитанные записи, полностью прочитанные сегменты удаляются. Запись не
+ * сбрасывает данные на диск: сброс выполняется периодически ({@code syncInterval}) и при остановке ограничителя,
+ * поэтому при сбое ОС последние записи могут пропасть, а при остановке процесса - нет.
+ *
+ * @param <T> тип задачи
+ */
+public class TaskJournal<T> implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TaskJournal.class);
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER = 8;
+    private static final int OFFSET_BITS = 32;
+    private final Path directory;
+    private final TaskSerializer<T> serializer;
+    private final int segmentSize;
+    private final long syncIntervalNanos;
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private final MappedByteBuffer head;
+    private long headSegment;
+    private int headOffset;
+    private long tailSegment;
+    private int tailOffset;
+    private boolean dirty;
+
+    private TaskJournal(Builder<T> builder) throws IOException {
+        if (builder.segmentSize <= RECORD_HEADER) {
+            throw new IllegalArgumentException("segmentSize is too small");
+        }
+        this.directory = builder.directory;
+        this.serializer = builder.serializer;
+        this.segmentSize = builder.segmentSize;
+        this.syncIntervalNanos = builder.syncIntervalNanos;
+        Files.createDirectories(directory);
+        this.head = map(directory.resolve("head"), 16);
+        this.headSegment = head.getLong(0);
+        this.headOffset = head.getInt(8);
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                .filter(file -> file.startsWith(SEGMENT_PREFIX) && file.endsWith(SEGMENT_SUFFIX))
+                .mapToLong(file -> Long.parseLong(file.substring(SEGMENT_PREFIX.length(),
+                    file.length() - SEGMENT_SUFFIX.length())))
+                .filter(index -> index >= headSegment)
+                .forEach(index -> segments.put(index, null));
+        }
+        for (Long index : new ArrayList<>(segments.keySet())) {
+            segments.put(index, map(segmentPath(index), segmentSize));
+        }
+        this.tailSegment = segments.isEmpty()
+            ? headSegment
+            : segments.lastKey();
+        this.tailOffset = segments.isEmpty()
+            ? 0
+            : endOfRecords(segments.lastEntry().getValue());
+        logger.debug("journal {} opened at segment {}, offset {}", directory, tailSegment, tailOffset);
+    }
+
+    /**
+     * Создает построитель журнала.
+     *
+     * @param directory  каталог журнала
+     * @param serializer преобразование задач в байты
+     * @param <T>        тип задачи
+     * @return построитель
+     */
+    public static <T> Builder<T> builder(Path directory, TaskSerializer<T> serializer) {
+        return new Builder<>(directory, serializer);
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static long position(long segment, int offset) {
+        return segment << OFFSET_BITS | offset;
+    }
+
+    private Path segmentPath(long index) {
+        return directory.resolve(SEGMENT_PREFIX + String.format("%019d", index) + SEGMENT_SUFFIX);
+    }
+
+    private int endOfRecords(MappedByteBuffer segment) {
+        int offset = 0;
+        while (offset + RECORD_HEADER <= segmentSize) {
+            int length = segment.getInt(offset);
+            if (length == 0) {
+                break;
+            }
+            offset += RECORD_HEADER + Math.abs(length);
+        }
+        return offset;
+    }
+
+    /**
+     * Дописывает задачу в конец журнала.
+     *
+     * @param task     задача
+     * @param priority приоритет задачи
+     * @return положение записи
+     */
+    synchronized long append(T task, int priority) {
+        byte[] data = serializer.serialize(task);
+        if (data.length == 0 || RECORD_HEADER + data.length > segmentSize) {
+            throw new IllegalArgumentException("task of " + data.length + " bytes does not fit into a segment");
+        }
+        MappedByteBuffer segment = segments.get(tailSegment);
+        if (segment == null || tailOffset + RECORD_HEADER + data.length > segmentSize) {
+            segment = nextSegment();
+        }
+        segment.position(tailOffset + RECORD_HEADER);
+        segment.put(data);
+        segment.putInt(tailOffset + 4, priority);
+        // Длина пишется последней: запись без длины считается концом сегмента
+        segment.putInt(tailOffset, data.length);
+        final long position = position(tailSegment, tailOffset);
+        tailOffset += RECORD_HEADER + data.length;
+        dirty = true;
+        return position;
+    }
+
+    /**
+     * Возвращает положение, с которого будет записана следующая задача.
+     *
+     * @return положение конца журнала
+     */
+    synchronized long tail() {
+        return position(tailSegment, tailOffset);
+    }
+
+    private MappedByteBuffer nextSegment() {
+        if (segments.containsKey(tailSegment)) {
+            tailSegment++;
+        }
+        tailOffset = 0;
+        try {
+            MappedByteBuffer segment = map(segmentPath(tailSegment), segmentSize);
+            segments.put(tailSegment, segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Читает все непрочитанные записи, не отмечая их прочитанными.
+     *
+     * @return записи в порядке добавления
+     */
+    synchronized List<Entry<T>> pending() {
+        return pending(Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Читает непрочитанные записи до заданного положения, не отмечая их прочитанными.
+     *
+     * @param limit наибольшее количество записей
+     * @param end   положение, перед которым чтение останавливается
+     * @return записи в порядке добавления
+     */
+    synchronized List<Entry<T>> pending(int limit, long end) {
+        return pending(limit, -1, end);
+    }
+
+    /**
+     * Читает непрочитанные записи, следующие за заданной записью, до заданного положения, не отмечая их прочитанными.
+     *
+     * @param limit наибольшее количество записей
+     * @param after положение записи, после которой начинается чтение, -1 - чтение с головы журнала
+     * @param end   положение, перед которым чтение останавливается
+     * @return записи в порядке добавления
+     */
+    synchronized List<Entry<T>> pending(int limit, long after, long end) {
+        List<Entry<T>> entries = new ArrayList<>();
+        long index = headSegment;
+        int offset = headOffset;
+        if (after >= position(headSegment, headOffset)) {
+            index = after >>> OFFSET_BITS;
+            offset = (int) after;
+            MappedByteBuffer segment = segments.get(index);
+            if (segment != null) {
+                offset += RECORD_HEADER + Math.abs(segment.getInt(offset));
+            }
+        }
+        while (entries.size() < limit && position(index, offset) < end) {
+            MappedByteBuffer segment = segments.get(index);
+            int length = segment == null || offset + RECORD_HEADER > segmentSize
+                ? 0
+                : segment.getInt(offset);
+            if (length == 0) {
+                if (segment == null || index >= tailSegment) {
+                    break;
+                }
+                index++;
+                offset = 0;
+                continue;
+            }
+            if (length > 0) {
+                byte[] data = new byte[length];
+                ByteBuffer record = segment.duplicate();
+                record.position(offset + RECORD_HEADER);
+                record.get(data);
+                entries.add(new Entry<>(serializer.deserialize(data), segment.getInt(offset + 4),
+                    position(index, offset)));
+            }
+            offset += RECORD_HEADER + Math.abs(length);
+        }
+        return entries;
+    }
+
+    /**
+     * Отмечает запись прочитанной, переносит голову журнала через прочитанные записи и удаляет полностью прочитанные
+     * сегменты.
+     *
+     * @param position положение записи
+     */
+    synchronized void commit(long position) {
+        MappedByteBuffer record = segments.get(position >>> OFFSET_BITS);
+        final int offset = (int) position;
+        if (record != null && record.getInt(offset) > 0) {
+            record.putInt(offset, -record.getInt(offset));
+        }
+        while (true) {
+            MappedByteBuffer segment = segments.get(headSegment);
+            int length = segment == null || headOffset + RECORD_HEADER > segmentSize
+                ? 0
+                : segment.getInt(headOffset);
+            if (length < 0) {
+                headOffset += RECORD_HEADER - length;
+            } else if (length == 0 && headSegment < tailSegment) {
+                deleteSegment(headSegment);
+                headSegment++;
+                headOffset = 0;
+            } else {
+                break;
+            }
+        }
+        head.putLong(0, headSegment);
+        head.putInt(8, headOffset);
+        dirty = true;
+    }
+
+    private void deleteSegment(long index) {
+        segments.remove(index);
+        try {
+            Files.deleteIfExists(segmentPath(index));
+        } catch (IOException e) {
+            logger.warn("failed to delete journal segment {}: {}", index, e.toString());
+        }
+    }
+
+    /**
+     * Сбрасывает измененные сегменты на диск.
+     */
+    public synchronized void sync() {
+        if (!dirty) {
+            return;
+        }
+        for (MappedByteBuffer segment : segments.values()) {
+            segment.force();
+        }
+        head.force();
+        dirty = false;
+    }
+
+    long getSyncIntervalNanos() {
+        return syncIntervalNanos;
+    }
+
+    /**
+     * Сбрасывает журнал на диск. Отображение файлов освобождается сборщиком мусора.
+     */
+    @Override
+    public void close() {
+        sync();
+    }
+
+    /**
+     * Запись журнала.
+     *
+     * @param <T> тип задачи
+     */
+    static final class Entry<T> {
+
+        private final T task;
+        private final int priority;
+        private final long position;
+
+        Entry(T task, int priority, long position) {
+            this.task = task;
+            this.priority = priority;
+            this.position = position;
+        }
+
+        T getTask() {
+            return task;
+        }
+
+        int getPriority() {
+            return priority;
+        }
+
+        long getPosition() {
+            return position;
+        }
+    }
+
+    /**
+     * Построитель журнала.
+     *
+     * @param <T> тип задачи
+     */
+    public static class Builder<T> {
+
+        private final Path directory;
+        private final TaskSerializer<T> serializer;
+        private int segmentSize = 16 * 1024 * 1024;
+        private long syncIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+
+        Builder(Path directory, TaskSerializer<T> serializer) {
+            this.directory = directory;
+            this.serializer = serializer;
+        }
+
+        /**
+         * Устанавливает размер сегмента журнала.
+         *
+         * @param segmentSize размер в байтах, не меньше самой большой записи
+         * @return построитель
+         */
+        public Builder<T> segmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Устанавливает период сброса журнала на диск.
+         *
+         * @param interval период сброса
+         * @param timeUnit единица измерения периода
+         * @return построитель
+         */
+        public Builder<T> syncInterval(long interval, TimeUnit timeUnit) {
+            this.syncIntervalNanos = timeUnit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Открывает или создает журнал.
+         *
+         * @return журнал
+         * @throws IOException ошибка открытия файлов журнала
+         */
+        public TaskJournal<T> build() throws IOException {
+            return new TaskJournal<>(this);
+        }
+    }
+}
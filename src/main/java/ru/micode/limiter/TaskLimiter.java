@@ -1,31 +1,94 @@
 package ru.micode.limiter;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ru.micode.executor.VirtualThreads;
+import ru.micode.metrics.LimiterMetrics;
+import ru.micode.metrics.MetricsExporter;
+
 /**
  * Ограничитель выполнения задач, с приоритентой очередью.
+ *
+ * <p>Задачи, для которых нет разрешения, не задерживают обработчик очереди: они передаются планировщику и
+ * возвращаются в очередь в момент появления следующего разрешения.
+ *
+ * <p>Кроме конструкторов с лимитами в секунду и минуту, ограничитель с произвольным набором окон создается через
+ * {@link #builder()}.
  */
-public class TaskLimiter<TASK, RESULT> {
+public class TaskLimiter<TASK, RESULT> implements AutoCloseable {
 
     private static final Logger logger = LoggerFactory.getLogger(TaskLimiter.class);
-    private final PriorityBlockingQueue<TaskWrapper<TASK, RESULT>> requestQueue;
+    /**
+     * Минимальная задержка отложенной задачи, исключает холостой цикл при гонке за только что освободившееся
+     * разрешение.
+     */
+    private static final long MIN_DEFER_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long DRAIN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private final BlockingQueue<TaskWrapper<TASK, RESULT>> requestQueue;
     private final ExecutorService executorService;
-    private final TimeLimitCounter secondCounter;
-    private final TimeLimitCounter minuteCounter;
+    private final ExecutorService taskExecutor;
+    private final boolean ownsTaskExecutor;
+    private final Semaphore inFlight;
+    private final ScheduledExecutorService scheduler;
+    private final CompositeRateLimiter limiter;
+    private final int safetyPriority;
     private final AtomicBoolean work;
+    private final int capacity;
+    private final Semaphore slots;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final AtomicLong sequence = new AtomicLong();
+    private final LimiterMetrics metrics;
+    private final MetricsExporter metricsExporter;
+    private final TaskJournal<TASK> journal;
+    private final TaskProcess<TASK, RESULT> replayProcess;
+    private final Queue<TaskWrapper<TASK, RESULT>> spilled = new PriorityQueue<>(
+        Comparator.<TaskWrapper<TASK, RESULT>>comparingInt(TaskWrapper::getPriority).reversed()
+            .thenComparingLong(TaskWrapper::getJournalPosition));
+    private final Set<TaskWrapper<TASK, RESULT>> deferred = ConcurrentHashMap.newKeySet();
+    private final Set<TaskBatcher<TASK, RESULT>> batchers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicBoolean accepting = new AtomicBoolean(true);
+    private final Object pauseLock = new Object();
+    private final TaskWrapper<TASK, RESULT> stopSignal =
+        new TaskWrapper<>(null, Integer.MIN_VALUE, null, new CompletableFuture<>());
+    private final int workers;
+    private final double rampRate;
+    private final ToIntFunction<TASK> costFunction;
+    private final AtomicLong rampDispatched = new AtomicLong();
+    private volatile boolean paused;
+    private volatile long rampStart;
+    private volatile long rampNanos;
+    private long backlogEnd;
+    private long backlogRead = -1;
+    private boolean backlog;
 
     /**
-     * Конструктор.
+     * Конструктор с ограничением по фиксированным окнам.
      *
      * @param threadPoolSize   количество потоков обрабатывающих очередь запросов
      * @param nameBalancer     название балансера
@@ -37,15 +100,62 @@ public class TaskLimiter<TASK, RESULT> {
      */
     public TaskLimiter(int threadPoolSize, String nameBalancer, int requestPerSecond, int requestPerMinute,
                        int safetyPriority) {
+        this(threadPoolSize, nameBalancer, requestPerSecond, requestPerMinute, safetyPriority,
+            RateLimiter.Strategy.FIXED_WINDOW);
+    }
+
+    /**
+     * Конструктор.
+     *
+     * @param threadPoolSize   количество потоков обрабатывающих очередь запросов
+     * @param nameBalancer     название балансера
+     * @param requestPerSecond максимальное количество запросов в секунду
+     * @param requestPerMinute максимальное количество запросов в минуту
+     * @param safetyPriority   минимальное сохраняемое значение приоритета, при достижении любого из лимитов. Задачи с
+     *                         более низким приоритетом не будут возвращаться в очередь для попыток выполнения запроса в
+     *                         следующей итерации.
+     * @param strategy         стратегия ограничения частоты
+     */
+    public TaskLimiter(int threadPoolSize, String nameBalancer, int requestPerSecond, int requestPerMinute,
+                       int safetyPriority, RateLimiter.Strategy strategy) {
+        this(new Builder<TASK, RESULT>()
+            .threadPoolSize(threadPoolSize)
+            .name(nameBalancer)
+            .safetyPriority(safetyPriority)
+            .strategy(strategy)
+            .limit(requestPerSecond, 1, TimeUnit.SECONDS)
+            .limit(requestPerMinute, 1, TimeUnit.MINUTES));
+    }
+
+    private TaskLimiter(Builder<TASK, RESULT> builder) {
+        final String nameBalancer = builder.name;
         work = new AtomicBoolean(true);
-        secondCounter = new TimeLimitCounter(requestPerSecond, 1, TimeUnit.SECONDS);
-        minuteCounter = new TimeLimitCounter(requestPerMinute, 1, TimeUnit.MINUTES);
-        if (nameBalancer != null) {
-            secondCounter.setNameCounter(nameBalancer + "_" + TimeUnit.SECONDS.name());
-            minuteCounter.setNameCounter(nameBalancer + "_" + TimeUnit.MINUTES.name());
-        }
-        requestQueue = new PriorityBlockingQueue<>();
-        executorService = Executors.newFixedThreadPool(threadPoolSize, new ThreadFactory() {
+        safetyPriority = builder.safetyPriority;
+        limiter = builder.createLimiter();
+        requestQueue = builder.schedulingPolicy.createQueue();
+        capacity = builder.capacity;
+        slots = capacity == Integer.MAX_VALUE
+            ? null
+            : new Semaphore(capacity);
+        overflowPolicy = builder.overflowPolicy;
+        blockTimeoutNanos = builder.blockTimeoutUnit.toNanos(builder.blockTimeout);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName("balancer-" + nameBalancer + "-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        taskExecutor = builder.createTaskExecutor();
+        ownsTaskExecutor = builder.taskExecutor == null;
+        inFlight = builder.maxInFlight == Integer.MAX_VALUE
+            ? null
+            : new Semaphore(builder.maxInFlight);
+        workers = taskExecutor == null
+            ? builder.threadPoolSize
+            : 1;
+        rampRate = builder.rampRate();
+        costFunction = builder.costFunction;
+        executorService = Executors.newFixedThreadPool(workers, new ThreadFactory() {
             private final AtomicInteger counter = new AtomicInteger();
 
             @Override
@@ -56,51 +166,250 @@ public class TaskLimiter<TASK, RESULT> {
                 return thread;
             }
         });
-        int i = threadPoolSize;
+        metricsExporter = builder.metricsExporter;
+        metrics = metricsExporter == null
+            ? LimiterMetrics.DISABLED
+            : new LimiterMetrics(nameBalancer);
+        if (metricsExporter != null) {
+            metrics.gauge("queueDepth", requestQueue::size);
+            metrics.gauge("availablePermits", limiter::available);
+            if (slots != null) {
+                metrics.gauge("inFlight", () -> capacity - slots.availablePermits());
+            }
+            metricsExporter.register(metrics);
+        }
+        journal = builder.journal;
+        replayProcess = builder.replayProcess;
+        if (journal != null) {
+            // Восстановление до запуска потоков: места в очереди еще не освобождаются, и журнал не читается
+            replay();
+            scheduler.scheduleWithFixedDelay(journal::sync, journal.getSyncIntervalNanos(),
+                journal.getSyncIntervalNanos(), TimeUnit.NANOSECONDS);
+        }
+        if (taskExecutor != null) {
+            executorService.submit(this::runDispatcher);
+            return;
+        }
+        int i = workers;
         while (i-- > 0) {
-            executorService.submit(() -> {
-                while (work.get()) {
-                    try {
-                        logger.trace("wait next task...");
-                        TaskWrapper<TASK, RESULT> taskWrapper = requestQueue.take();
-                        if (secondCounter.decrementAndGet() < 0) {
-                            logger.debug("per second limit value = {}", secondCounter.get());
-                            if (taskWrapper.getPriority() < safetyPriority) {
-                                taskWrapper.exceptionally("Request per second limit exceeded");
-                            } else {
-                                // Вернем обратно в очередь
-                                TimeUnit.MILLISECONDS.sleep(100);
-                                requestQueue.offer(taskWrapper);
-                            }
-                        } else if (minuteCounter.decrementAndGet() < 0) {
-                            logger.debug("per minute limit value = {}", minuteCounter.get());
-                            if (taskWrapper.getPriority() < safetyPriority) {
-                                taskWrapper.exceptionally("Request per minute limit exceeded");
-                            } else {
-                                TimeUnit.SECONDS.sleep(1);
-                                taskWrapper.setPriority(20);
-                                requestQueue.offer(taskWrapper);
-                            }
-                        } else {
-                            logger.trace("run for priority {}", taskWrapper.getPriority());
-                            taskWrapper.run();
-                        }
-                    } catch (InterruptedException ie) {
-                        logger.info("force termination of the process");
-                    } catch (Exception e) {
-                        logger.error("an error process task", e);
-                    }
-                }
-            });
+            executorService.submit(this::runWorker);
         }
     }
 
+    /**
+     * Создает построитель ограничителя с произвольным набором окон.
+     *
+     * @param <T> тип задачи
+     * @param <R> тип результата
+     * @return построитель
+     */
+    public static <T, R> Builder<T, R> builder() {
+        return new Builder<>();
+    }
+
     /**
      * Завершает работу всех обслуживающих потоков.
      */
     public void shutdownAll() {
+        accepting.set(false);
+        stop(true);
+    }
+
+    /**
+     * Закрывает ограничитель без прерывания выполняемых задач: новые задачи отклоняются, задачи из очереди и
+     * отложенные сохраняются в журнал, если он подключен, иначе завершаются {@link CancellationException}.
+     * Выполняемые задачи завершаются обычным образом, после чего потоки ограничителя останавливаются. Чтобы
+     * дождаться выполнения очереди, вызовите перед закрытием {@link #drain(long, TimeUnit)}.
+     */
+    @Override
+    public void close() {
+        if (accepting.compareAndSet(true, false) || work.get()) {
+            stop(false);
+        }
+    }
+
+    private void stop(boolean interrupt) {
+        settleBatchers();
         work.set(false);
-        executorService.shutdownNow();
+        synchronized (pauseLock) {
+            pauseLock.notifyAll();
+        }
+        if (interrupt) {
+            executorService.shutdownNow();
+        } else {
+            executorService.shutdown();
+        }
+        scheduler.shutdownNow();
+        if (journal != null) {
+            persist();
+        } else {
+            cancelPending(new CancellationException("limiter stopped"));
+        }
+        // Свободные потоки ждут задачу в очереди: сигнал остановки будит их без прерывания
+        for (int i = 0; i < workers; i++) {
+            requestQueue.offer(stopSignal);
+        }
+        if (taskExecutor != null && ownsTaskExecutor) {
+            if (interrupt) {
+                taskExecutor.shutdownNow();
+            } else {
+                taskExecutor.shutdown();
+            }
+        }
+        if (metricsExporter != null) {
+            metricsExporter.unregister(metrics);
+        }
+    }
+
+    /**
+     * Приостанавливает выдачу задач из очереди. Выполняемые задачи не прерываются, новые задачи принимаются в
+     * очередь.
+     */
+    public void pause() {
+        paused = true;
+        logger.info("limiter paused");
+    }
+
+    /**
+     * Возобновляет выдачу задач из очереди сразу в пределах лимитов.
+     */
+    public void resume() {
+        resume(0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Возобновляет выдачу задач с плавным разгоном: частота выдачи растет линейно от нуля до частоты самого
+     * короткого окна лимита за время разгона, поэтому накопленная очередь не расходует окно одним всплеском. Без
+     * окон лимита разгон не выполняется.
+     *
+     * @param rampUp   время разгона
+     * @param timeUnit единица измерения времени разгона
+     */
+    public void resume(long rampUp, TimeUnit timeUnit) {
+        long nanos = timeUnit.toNanos(rampUp);
+        if (nanos > 0 && rampRate > 0) {
+            rampDispatched.set(0);
+            rampStart = System.nanoTime();
+            rampNanos = nanos;
+        }
+        synchronized (pauseLock) {
+            paused = false;
+            pauseLock.notifyAll();
+        }
+        logger.info("limiter resumed, ramp-up {} ms", TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * Перестает принимать новые задачи и ожидает выполнения задач из очереди, отложенных и выполняемых.
+     * Приостановленный ограничитель возобновляет работу. Новые задачи завершаются
+     * {@link RejectedExecutionException}.
+     *
+     * @param timeout  наибольшее время ожидания
+     * @param timeUnit единица измерения времени ожидания
+     * @return true, если все задачи выполнены, false - если время ожидания истекло
+     * @throws InterruptedException ожидание прервано
+     */
+    public boolean drain(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        settleBatchers();
+        accepting.set(false);
+        if (paused) {
+            resume();
+        }
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        boolean idle = false;
+        while (true) {
+            // Задача между выдачей из очереди и учетом в active не видна, поэтому простой подтверждается дважды
+            if (isIdle()) {
+                if (idle) {
+                    return true;
+                }
+                idle = true;
+            } else {
+                idle = false;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(remaining, DRAIN_POLL_NANOS));
+        }
+    }
+
+    private boolean isIdle() {
+        boolean noSpilled;
+        synchronized (spilled) {
+            noSpilled = spilled.isEmpty() && !backlog;
+        }
+        return noSpilled && active.get() == 0 && deferred.isEmpty() && requestQueue.isEmpty();
+    }
+
+    /**
+     * Забирает задачи из очереди и отложенные задачи, чтобы вызывающий код обработал их сам. Обертки забранных задач
+     * отменяются.
+     *
+     * @return задачи в порядке убывания приоритета
+     */
+    public List<TASK> removePending() {
+        List<TaskWrapper<TASK, RESULT>> pending = new ArrayList<>();
+        synchronized (spilled) {
+            TaskWrapper<TASK, RESULT> taskWrapper;
+            while ((taskWrapper = pollSpilled()) != null) {
+                pending.add(taskWrapper);
+            }
+            if (backlog) {
+                journal.pending(Integer.MAX_VALUE, backlogRead, backlogEnd)
+                    .forEach(entry -> pending.add(restore(entry)));
+                backlog = false;
+            }
+        }
+        requestQueue.drainTo(pending);
+        for (TaskWrapper<TASK, RESULT> taskWrapper : deferred) {
+            if (deferred.remove(taskWrapper)) {
+                pending.add(taskWrapper);
+            }
+        }
+        pending.sort(Comparator.<TaskWrapper<TASK, RESULT>>comparingInt(TaskWrapper::getPriority).reversed()
+            .thenComparingLong(TaskWrapper::getSequence));
+        List<TASK> tasks = new ArrayList<>(pending.size());
+        for (TaskWrapper<TASK, RESULT> taskWrapper : pending) {
+            if (taskWrapper != stopSignal && !taskWrapper.isHedge() && taskWrapper.cancel()) {
+                tasks.add(taskWrapper.getTask());
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Ставит в очередь пакеты накопителей, пока ограничитель принимает задачи, иначе отменяет их.
+     */
+    private void settleBatchers() {
+        boolean open = accepting.get();
+        for (TaskBatcher<TASK, RESULT> batcher : batchers) {
+            if (open) {
+                batcher.flush();
+            } else {
+                batcher.cancel(new CancellationException("limiter stopped"));
+            }
+        }
+    }
+
+    private void cancelPending(CancellationException cancellation) {
+        List<TaskWrapper<TASK, RESULT>> pending = new ArrayList<>(deferred);
+        deferred.clear();
+        requestQueue.drainTo(pending);
+        pending.forEach(taskWrapper -> taskWrapper.exceptionally(cancellation));
+        if (!pending.isEmpty()) {
+            logger.info("{} pending tasks cancelled", pending.size());
+        }
+    }
+
+    /**
+     * Возвращает метрики ограничителя.
+     *
+     * @return метрики, {@link LimiterMetrics#DISABLED} - если экспортер метрик не задан
+     */
+    public LimiterMetrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -112,12 +421,839 @@ public class TaskLimiter<TASK, RESULT> {
      * @return обертка задачи
      */
     public TaskWrapper<TASK, RESULT> createTask(TASK task, int priority, TaskProcess<TASK, RESULT> taskProcess) {
+        return submit(new TaskWrapper<>(task, priority, taskProcess, new CompletableFuture<>()));
+    }
+
+    /**
+     * Создает задачу на обработку с указанным приоритетом и параметрами выполнения (повторы, крайний срок,
+     * дублирование запроса).
+     *
+     * @param task        задача которая будет передана в обработку когда подойдет ее очередь
+     * @param priority    значение приоритета
+     * @param options     параметры выполнения задачи
+     * @param taskProcess интерфейс обработки задачи
+     * @return обертка задачи
+     */
+    public TaskWrapper<TASK, RESULT> createTask(TASK task, int priority, TaskOptions options,
+                                                TaskProcess<TASK, RESULT> taskProcess) {
         TaskWrapper<TASK, RESULT> taskWrapper =
             new TaskWrapper<>(task, priority, taskProcess, new CompletableFuture<>());
+        taskWrapper.setOptions(options);
+        return submit(taskWrapper);
+    }
+
+    /**
+     * Создает задачи на обработку с одинаковым приоритетом.
+     *
+     * @param tasks       задачи которые будут переданы в обработку когда подойдет их очередь
+     * @param priority    значение приоритета
+     * @param taskProcess интерфейс обработки задачи
+     * @return обертки задач в порядке коллекции
+     */
+    public List<TaskWrapper<TASK, RESULT>> createTasks(Collection<? extends TASK> tasks, int priority,
+                                                       TaskProcess<TASK, RESULT> taskProcess) {
+        List<TaskWrapper<TASK, RESULT>> taskWrappers = new ArrayList<>(tasks.size());
+        List<TaskWrapper<TASK, RESULT>> admitted = new ArrayList<>(tasks.size());
+        for (TASK task : tasks) {
+            TaskWrapper<TASK, RESULT> taskWrapper =
+                new TaskWrapper<>(task, priority, taskProcess, new CompletableFuture<>());
+            taskWrappers.add(taskWrapper);
+            if (weigh(taskWrapper) && admit(taskWrapper)) {
+                taskWrapper.setQueue(requestQueue);
+                taskWrapper.enqueued(sequence.incrementAndGet(), System.nanoTime());
+                admitted.add(taskWrapper);
+            }
+        }
+        requestQueue.addAll(admitted);
+        return taskWrappers;
+    }
+
+    /**
+     * Создает построитель слоя, объединяющего одинаковые задачи и кеширующего их результаты.
+     *
+     * @return построитель слоя объединения задач
+     */
+    public TaskCoalescer.Builder<TASK, RESULT> coalescer() {
+        return new TaskCoalescer.Builder<>(this);
+    }
+
+    /**
+     * Создает построитель процессора {@link java.util.concurrent.Flow.Processor}, выполняющего элементы потока как
+     * задачи ограничителя.
+     *
+     * @param taskProcess интерфейс обработки задачи
+     * @return построитель процессора
+     */
+    public TaskProcessor.Builder<TASK, RESULT> processor(TaskProcess<TASK, RESULT> taskProcess) {
+        return new TaskProcessor.Builder<>(this, taskProcess);
+    }
+
+    /**
+     * Создает построитель накопителя, объединяющего задачи в пакеты для пакетной обработки.
+     *
+     * @param batchProcess интерфейс пакетной обработки задач
+     * @return построитель накопителя
+     */
+    public TaskBatcher.Builder<TASK, RESULT> batcher(TaskBatcher.BatchProcess<TASK, RESULT> batchProcess) {
+        return new TaskBatcher.Builder<>(this, batchProcess);
+    }
+
+    void register(TaskBatcher<TASK, RESULT> batcher) {
+        batchers.add(batcher);
+    }
+
+    boolean isAccepting() {
+        return accepting.get();
+    }
+
+    int availablePermits() {
+        return limiter.available();
+    }
+
+    /**
+     * Возвращает стоимость задачи по функции стоимости ограничителя.
+     *
+     * @param task задача
+     * @return количество разрешений
+     */
+    int cost(TASK task) {
+        return costFunction == null
+            ? 1
+            : costFunction.applyAsInt(task);
+    }
+
+    int remainingCapacity() {
+        return slots == null
+            ? Integer.MAX_VALUE
+            : slots.availablePermits();
+    }
+
+    /**
+     * Ставит готовую задачу в очередь, если для нее есть место.
+     *
+     * @param taskWrapper обертка задачи
+     * @return обертка задачи
+     */
+    TaskWrapper<TASK, RESULT> submit(TaskWrapper<TASK, RESULT> taskWrapper) {
+        if (weigh(taskWrapper) && admit(taskWrapper)) {
+            enqueue(taskWrapper);
+        }
+        return taskWrapper;
+    }
+
+    /**
+     * Определяет стоимость задачи в разрешениях. Задача, стоимость которой больше емкости самого узкого окна среди
+     * ограничителей ограничителя и собственных ограничителей задачи, никогда не получит разрешения и отклоняется сразу.
+     *
+     * @param taskWrapper задача
+     * @return true, если задача может получить разрешения
+     */
+    private boolean weigh(TaskWrapper<TASK, RESULT> taskWrapper) {
+        if (costFunction != null && !taskWrapper.hasCost() && taskWrapper.getTask() != null) {
+            taskWrapper.setPermits(costFunction.applyAsInt(taskWrapper.getTask()));
+        }
+        final int permits = taskWrapper.getPermits();
+        CompositeRateLimiter taskLimiter = taskWrapper.getRateLimiter();
+        final int maxCost = taskLimiter == null
+            ? limiter.maxPermits()
+            : Math.min(limiter.maxPermits(), taskLimiter.maxPermits());
+        if (permits > 0 && permits <= maxCost) {
+            return true;
+        }
+        metrics.onRejected(taskWrapper.getPriority());
+        taskWrapper.exceptionally(new IllegalArgumentException("Task cost " + permits + " exceeds limit " + maxCost));
+        return false;
+    }
+
+    private void enqueue(TaskWrapper<TASK, RESULT> taskWrapper) {
+        taskWrapper.setQueue(requestQueue);
+        taskWrapper.enqueued(sequence.incrementAndGet(), System.nanoTime());
         requestQueue.offer(taskWrapper);
+    }
+
+    /**
+     * Занимает место для задачи в пределах емкости ограничителя согласно политике переполнения. Место освобождается
+     * при завершении задачи. Задача, которой место не досталось, завершается {@link RejectedExecutionException}.
+     *
+     * @param taskWrapper обертка задачи
+     * @return true, если задача может быть поставлена в очередь
+     */
+    private boolean admit(TaskWrapper<TASK, RESULT> taskWrapper) {
+        if (!accepting.get()) {
+            metrics.onRejected(taskWrapper.getPriority());
+            taskWrapper.exceptionally(new RejectedExecutionException("Limiter is closed"));
+            return false;
+        }
+        if (slots == null) {
+            metrics.onSubmitted(taskWrapper.getPriority());
+            return true;
+        }
+        if (slots.tryAcquire() || overflow(taskWrapper)) {
+            holdSlot(taskWrapper);
+            metrics.onSubmitted(taskWrapper.getPriority());
+            return true;
+        }
+        if (journal != null && spill(taskWrapper)) {
+            metrics.onSubmitted(taskWrapper.getPriority());
+            return false;
+        }
+        metrics.onRejected(taskWrapper.getPriority());
+        logger.debug("queue capacity {} exceeded, reject task with priority {}", capacity, taskWrapper.getPriority());
+        taskWrapper.exceptionally(new RejectedExecutionException("Queue capacity " + capacity + " exceeded"));
+        return false;
+    }
+
+    private void holdSlot(TaskWrapper<TASK, RESULT> taskWrapper) {
+        taskWrapper.holdSlot();
+        taskWrapper.whenDone(() -> releaseSlot(taskWrapper));
+    }
+
+    private void releaseSlot(TaskWrapper<TASK, RESULT> taskWrapper) {
+        if (!taskWrapper.releaseSlot()) {
+            return;
+        }
+        slots.release();
+        if (journal != null) {
+            refill();
+        }
+    }
+
+    /**
+     * Записывает задачу, не поместившуюся в очередь, в журнал. Задача ожидает в памяти и возвращается в очередь в
+     * порядке приоритета, когда освобождается место; после перезапуска ее восстанавливает журнал.
+     *
+     * @param taskWrapper обертка задачи
+     * @return true, если задача записана в журнал
+     */
+    private boolean spill(TaskWrapper<TASK, RESULT> taskWrapper) {
+        if (taskWrapper.getTask() == null) {
+            return false;
+        }
+        synchronized (spilled) {
+            try {
+                track(taskWrapper, journal.append(taskWrapper.getTask(), taskWrapper.getPriority()));
+            } catch (RuntimeException e) {
+                logger.warn("failed to spill task to journal: {}", e.toString());
+                return false;
+            }
+            spilled.add(taskWrapper);
+        }
+        logger.debug("queue capacity {} exceeded, task spilled to journal", capacity);
+        // Место могло освободиться, пока задача записывалась
+        refill();
+        return true;
+    }
+
+    /**
+     * Возвращает задачи из журнала в очередь, пока в ней есть место: сначала оставшиеся после перезапуска в порядке
+     * записи, затем не поместившиеся в очередь в порядке приоритета.
+     */
+    private void refill() {
+        while (work.get()) {
+            TaskWrapper<TASK, RESULT> taskWrapper;
+            TaskWrapper<TASK, RESULT> restored = null;
+            synchronized (spilled) {
+                if (spilled.isEmpty() && !backlog || !slots.tryAcquire()) {
+                    return;
+                }
+                if (backlog) {
+                    restored = restoreNext();
+                }
+                taskWrapper = restored == null
+                    ? pollSpilled()
+                    : restored;
+            }
+            if (taskWrapper == null) {
+                slots.release();
+                return;
+            }
+            if (taskWrapper == restored && weigh(taskWrapper)) {
+                metrics.onSubmitted(taskWrapper.getPriority());
+            }
+            if (taskWrapper.isDone()) {
+                slots.release();
+                continue;
+            }
+            holdSlot(taskWrapper);
+            enqueue(taskWrapper);
+        }
+    }
+
+    /**
+     * Забирает задачу с наибольшим приоритетом из не поместившихся в очередь. Запись задачи остается в журнале до
+     * завершения задачи. Вызывается под блокировкой {@code spilled}.
+     *
+     * @return задача или null, если таких задач нет
+     */
+    private TaskWrapper<TASK, RESULT> pollSpilled() {
+        return spilled.poll();
+    }
+
+    /**
+     * Читает следующую задачу, оставшуюся в журнале после перезапуска. Вызывается под блокировкой {@code spilled}.
+     *
+     * @return задача или null, если такие задачи закончились
+     */
+    private TaskWrapper<TASK, RESULT> restoreNext() {
+        List<TaskJournal.Entry<TASK>> entries = journal.pending(1, backlogRead, backlogEnd);
+        if (entries.isEmpty()) {
+            backlog = false;
+            return null;
+        }
+        return restore(entries.get(0));
+    }
+
+    private TaskWrapper<TASK, RESULT> restore(TaskJournal.Entry<TASK> entry) {
+        backlogRead = Math.max(backlogRead, entry.getPosition());
+        TaskWrapper<TASK, RESULT> taskWrapper =
+            new TaskWrapper<>(entry.getTask(), entry.getPriority(), replayProcess, new CompletableFuture<>());
+        track(taskWrapper, entry.getPosition());
         return taskWrapper;
     }
 
+    /**
+     * Связывает задачу с ее записью в журнале. Запись отмечается прочитанной, когда задача выполнена, завершилась
+     * ошибкой или отменена, поэтому после сбоя процесса задача выполняется повторно (доставка "хотя бы один раз").
+     * Задача, завершенная ошибкой после остановки ограничителя, остается в журнале.
+     *
+     * @param taskWrapper обертка задачи
+     * @param position    положение записи задачи
+     */
+    private void track(TaskWrapper<TASK, RESULT> taskWrapper, long position) {
+        taskWrapper.setJournalPosition(position);
+        taskWrapper.whenDone(() -> {
+            long done = taskWrapper.getJournalPosition();
+            if (done < 0 || !work.get() && taskWrapper.getFailure() != null) {
+                return;
+            }
+            try {
+                journal.commit(done);
+            } catch (RuntimeException e) {
+                logger.warn("failed to commit journal record: {}", e.toString());
+            }
+        });
+    }
+
+    /**
+     * Оставляет задачу в журнале для выполнения после перезапуска: дописывает ее, если она еще не записана, иначе
+     * отвязывает от записи, чтобы завершение задачи при остановке не отметило запись прочитанной.
+     *
+     * @param taskWrapper обертка задачи
+     */
+    private void keep(TaskWrapper<TASK, RESULT> taskWrapper) {
+        if (taskWrapper.getJournalPosition() < 0) {
+            journal.append(taskWrapper.getTask(), taskWrapper.getPriority());
+        } else {
+            taskWrapper.setJournalPosition(-1);
+        }
+    }
+
+    /**
+     * Ставит в очередь задачи, сохраненные в журнале, в порядке убывания приоритета, но не больше свободных мест в
+     * очереди. Остальные задачи остаются в журнале и возвращаются в очередь в порядке записи по мере освобождения
+     * места.
+     */
+    private void replay() {
+        final int free = slots == null
+            ? Integer.MAX_VALUE
+            : slots.availablePermits();
+        backlogEnd = journal.tail();
+        List<TaskJournal.Entry<TASK>> entries = journal.pending(free, backlogEnd);
+        backlog = entries.size() == free;
+        if (entries.isEmpty()) {
+            return;
+        }
+        logger.info("replay {} tasks from journal", entries.size());
+        List<TaskJournal.Entry<TASK>> ordered = new ArrayList<>(entries);
+        ordered.sort(Comparator.<TaskJournal.Entry<TASK>>comparingInt(TaskJournal.Entry::getPriority).reversed());
+        for (TaskJournal.Entry<TASK> entry : ordered) {
+            submit(restore(entry));
+        }
+    }
+
+    /**
+     * Сохраняет в журнал задачи из очереди и отложенные задачи в порядке убывания приоритета при остановке и
+     * завершает их {@link CancellationException}. Задачи, уже записанные в журнал при переполнении или прочитанные
+     * из него, остаются в нем.
+     */
+    private void persist() {
+        CancellationException stopped = new CancellationException("limiter stopped, task saved to journal");
+        List<TaskWrapper<TASK, RESULT>> pending = new ArrayList<>();
+        synchronized (spilled) {
+            pending.addAll(spilled);
+            spilled.clear();
+        }
+        pending.forEach(taskWrapper -> {
+            keep(taskWrapper);
+            taskWrapper.exceptionally(stopped);
+        });
+        pending.clear();
+        requestQueue.drainTo(pending);
+        pending.addAll(deferred);
+        // Записи, не поместившиеся в очередь после перезапуска, читаются в порядке записи
+        pending.sort(Comparator.<TaskWrapper<TASK, RESULT>>comparingInt(TaskWrapper::getPriority).reversed()
+            .thenComparingLong(TaskWrapper::getSequence));
+        int saved = 0;
+        for (TaskWrapper<TASK, RESULT> taskWrapper : pending) {
+            if (taskWrapper.isDone() || taskWrapper.isHedge() || taskWrapper.getTask() == null) {
+                continue;
+            }
+            keep(taskWrapper);
+            taskWrapper.exceptionally(stopped);
+            saved++;
+        }
+        journal.sync();
+        logger.info("{} pending tasks saved to journal", saved);
+    }
+
+    private boolean overflow(TaskWrapper<TASK, RESULT> taskWrapper) {
+        // Задача ниже safetyPriority не дождется разрешения при перегрузке, поэтому отклоняется сразу
+        if (taskWrapper.getPriority() < safetyPriority) {
+            return false;
+        }
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    return slots.tryAcquire(blockTimeoutNanos, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            case DROP_LOWEST_PRIORITY:
+                return dropLowest(taskWrapper.getPriority());
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Вытесняет из очереди задачу с наименьшим приоритетом, если он ниже приоритета новой задачи. Место вытесненной
+     * задачи передается новой задаче, не возвращаясь в семафор, чтобы его не занял другой поток.
+     *
+     * @param priority приоритет новой задачи
+     * @return true, если место вытесненной задачи досталось новой
+     */
+    private boolean dropLowest(int priority) {
+        TaskWrapper<TASK, RESULT> victim = null;
+        for (TaskWrapper<TASK, RESULT> queued : requestQueue) {
+            if (victim == null || queued.getPriority() < victim.getPriority()) {
+                victim = queued;
+            }
+        }
+        if (victim == null || victim.getPriority() >= priority || !requestQueue.remove(victim)) {
+            return false;
+        }
+        logger.debug("drop task with priority {}", victim.getPriority());
+        metrics.onRejected(victim.getPriority());
+        final boolean handedOver = victim.releaseSlot();
+        victim.exceptionally(new RejectedExecutionException("Dropped by task with higher priority"));
+        // Вытесняемая задача могла завершиться сама и уже вернуть место
+        return handedOver || slots.tryAcquire();
+    }
+
+    /**
+     * Возвращает планировщик ограничителя для служебных периодических задач.
+     *
+     * @return планировщик
+     */
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    private void runWorker() {
+        while (work.get()) {
+            try {
+                awaitResumed();
+                logger.trace("wait next task...");
+                TaskWrapper<TASK, RESULT> taskWrapper = requestQueue.take();
+                if (taskWrapper == stopSignal) {
+                    continue;
+                }
+                if (paused) {
+                    // Задача получена до паузы: она возвращается на свое место в очереди
+                    requestQueue.offer(taskWrapper);
+                    continue;
+                }
+                active.incrementAndGet();
+                try {
+                    if (acquire(taskWrapper)) {
+                        run(taskWrapper);
+                    }
+                } finally {
+                    active.decrementAndGet();
+                }
+            } catch (InterruptedException ie) {
+                logger.info("force termination of the process");
+            } catch (RejectedExecutionException ree) {
+                logger.debug("scheduler is stopped");
+            } catch (Exception e) {
+                logger.error("an error process task", e);
+            }
+        }
+    }
+
+    private void awaitResumed() throws InterruptedException {
+        if (!paused) {
+            return;
+        }
+        synchronized (pauseLock) {
+            while (paused && work.get()) {
+                pauseLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Цикл диспетчера: выдает разрешения в одном потоке, а задачи выполняет в отдельном исполнителе (по умолчанию
+     * - в виртуальных потоках), не более maxInFlight одновременно.
+     */
+    private void runDispatcher() {
+        while (work.get()) {
+            try {
+                awaitResumed();
+                logger.trace("wait next task...");
+                TaskWrapper<TASK, RESULT> taskWrapper = requestQueue.take();
+                if (taskWrapper == stopSignal) {
+                    continue;
+                }
+                if (paused) {
+                    // Задача получена до паузы: она возвращается на свое место в очереди
+                    requestQueue.offer(taskWrapper);
+                    continue;
+                }
+                dispatch(taskWrapper);
+            } catch (InterruptedException ie) {
+                logger.info("force termination of the process");
+            } catch (RejectedExecutionException ree) {
+                logger.debug("scheduler is stopped");
+            } catch (Exception e) {
+                logger.error("an error process task", e);
+            }
+        }
+    }
+
+    /**
+     * Выдает задаче разрешение и передает ее исполнителю. Учет выполняемых задач и занятое место освобождаются здесь,
+     * если задача не передана исполнителю, иначе - после ее выполнения.
+     *
+     * @param taskWrapper задача из очереди
+     * @throws InterruptedException поток прерван в ожидании места
+     */
+    private void dispatch(TaskWrapper<TASK, RESULT> taskWrapper) throws InterruptedException {
+        active.incrementAndGet();
+        boolean executed = false;
+        try {
+            // Место занимается до разрешения, чтобы не расходовать разрешение на задачу, которая не стартует
+            if (inFlight != null) {
+                inFlight.acquire();
+            }
+            try {
+                if (acquire(taskWrapper)) {
+                    execute(taskWrapper);
+                    executed = true;
+                }
+            } finally {
+                if (!executed && inFlight != null) {
+                    inFlight.release();
+                }
+            }
+        } finally {
+            if (!executed) {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    private void execute(TaskWrapper<TASK, RESULT> taskWrapper) {
+        try {
+            taskExecutor.execute(() -> {
+                try {
+                    run(taskWrapper);
+                } finally {
+                    active.decrementAndGet();
+                    if (inFlight != null) {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            active.decrementAndGet();
+            if (inFlight != null) {
+                inFlight.release();
+            }
+            taskWrapper.exceptionally(ree);
+        }
+    }
+
+    /**
+     * Забирает разрешения для задачи во всех окнах (собственных окнах задачи и общих окнах ограничителя). Если
+     * разрешения нет, откладывает или отклоняет задачу.
+     *
+     * @param taskWrapper задача из очереди
+     * @return true, если задачу можно запускать
+     */
+    private boolean acquire(TaskWrapper<TASK, RESULT> taskWrapper) {
+        if (taskWrapper.isDone()) {
+            logger.trace("skip completed task");
+            metrics.onCancelled();
+            return false;
+        }
+        if (taskWrapper.nanosToDeadline() <= 0 && taskWrapper.expire()) {
+            logger.debug("task deadline exceeded");
+            metrics.onCancelled();
+            return false;
+        }
+        if (rampNanos != 0 && !rampUp(taskWrapper)) {
+            return false;
+        }
+        RateLimiter denied;
+        try {
+            denied = tryAcquirePermits(taskWrapper);
+        } catch (RuntimeException e) {
+            // Ошибка ограничителя (например, хранилища общего лимита) завершает задачу, а не ожидание в очереди
+            logger.warn("rate limiter failed: {}", e.toString());
+            if (!taskWrapper.isHedge()) {
+                metrics.onRejected(taskWrapper.getPriority());
+                taskWrapper.exceptionally(e);
+            }
+            return false;
+        }
+        if (denied == null) {
+            logger.trace("run for priority {}", taskWrapper.getPriority());
+            return true;
+        }
+        logger.debug("limit {} exceeded", denied.getName());
+        if (taskWrapper.isHedge()) {
+            // Дублированный запрос не ждет разрешения, исходная задача уже выполняется
+            return false;
+        }
+        if (taskWrapper.getPriority() < safetyPriority) {
+            metrics.onShed(taskWrapper.getPriority());
+            taskWrapper.exceptionally("Request limit " + denied.getName() + " exceeded");
+            return false;
+        }
+        metrics.onThrottled(taskWrapper.getPriority());
+        // Вернем обратно в очередь, когда появится разрешение
+        defer(taskWrapper, denied);
+        return false;
+    }
+
+    /**
+     * Забирает разрешения задачи у ограничителя ее ключа и у общего ограничителя или не забирает ни одного.
+     *
+     * @param taskWrapper задача
+     * @return null, если разрешения получены, иначе ограничитель, отказавший в разрешении
+     */
+    private RateLimiter tryAcquirePermits(TaskWrapper<TASK, RESULT> taskWrapper) {
+        final int permits = taskWrapper.getPermits();
+        CompositeRateLimiter taskLimiter = taskWrapper.getRateLimiter();
+        RateLimiter denied = taskLimiter == null
+            ? null
+            : taskLimiter.tryAcquireAll(permits);
+        if (denied != null) {
+            return denied;
+        }
+        boolean acquired = false;
+        try {
+            denied = limiter.tryAcquireAll(permits);
+            acquired = denied == null;
+        } finally {
+            if (!acquired && taskLimiter != null) {
+                taskLimiter.release(permits);
+            }
+        }
+        return denied;
+    }
+
+    /**
+     * Ограничивает выдачу задач при разгоне после {@link #resume(long, TimeUnit)}: к моменту e от начала разгона
+     * длительностью R выдается не больше rate * e^2 / 2R задач, то есть частота растет линейно до rate.
+     *
+     * @param taskWrapper задача из очереди
+     * @return true, если задачу можно выдать, иначе задача отложена
+     */
+    private boolean rampUp(TaskWrapper<TASK, RESULT> taskWrapper) {
+        final long ramp = rampNanos;
+        long elapsed = System.nanoTime() - rampStart;
+        if (elapsed >= ramp) {
+            rampNanos = 0;
+            return true;
+        }
+        final double allowed = 1 + rampRate * elapsed * elapsed / (2.0 * ramp);
+        // Потоки выдачи конкурируют за одну квоту разгона: проверка и учет выдачи выполняются одной операцией
+        long dispatched = rampDispatched.get();
+        while (dispatched < allowed) {
+            if (rampDispatched.compareAndSet(dispatched, dispatched + 1)) {
+                return true;
+            }
+            dispatched = rampDispatched.get();
+        }
+        long next = (long) Math.sqrt(2.0 * ramp * dispatched / rampRate);
+        metrics.onThrottled(taskWrapper.getPriority());
+        requeue(taskWrapper, Math.max(Math.min(next, ramp) - elapsed, MIN_DEFER_NANOS));
+        return false;
+    }
+
+    private void run(TaskWrapper<TASK, RESULT> taskWrapper) {
+        TaskOptions options = taskWrapper.getOptions();
+        if (options != null) {
+            hedge(taskWrapper, options);
+        }
+        CompositeRateLimiter taskLimiter = taskWrapper.getRateLimiter();
+        boolean feedback = limiter.isAdaptive() || taskLimiter != null && taskLimiter.isAdaptive();
+        if (!metrics.isEnabled() && !feedback) {
+            taskWrapper.run();
+            retry(taskWrapper);
+            return;
+        }
+        long start = System.nanoTime();
+        taskWrapper.run();
+        long duration = System.nanoTime() - start;
+        metrics.onCompleted(taskWrapper.getPriority(), start - taskWrapper.getEnqueueNanos(),
+            duration, !taskWrapper.isDone() || taskWrapper.isCompletedExceptionally());
+        retry(taskWrapper);
+        if (feedback) {
+            // Адаптивные ограничители подстраивают частоту по времени выполнения и исключениям задач
+            Throwable failure = taskWrapper.getFailure();
+            limiter.onComplete(duration, failure);
+            if (taskLimiter != null) {
+                taskLimiter.onComplete(duration, failure);
+            }
+        }
+    }
+
+    /**
+     * Планирует дублированный запрос, если задача выполняется дольше задержки из параметров. Копия ставится в
+     * очередь только при свободных разрешениях и расходует собственное разрешение.
+     *
+     * @param taskWrapper запускаемая задача
+     * @param options     параметры задачи
+     */
+    private void hedge(TaskWrapper<TASK, RESULT> taskWrapper, TaskOptions options) {
+        if (options.getHedgeDelayNanos() <= 0 || taskWrapper.isHedge() || taskWrapper.getAttempts() > 0) {
+            return;
+        }
+        try {
+            scheduler.schedule(() -> {
+                if (taskWrapper.isDone() || limiter.available() == 0) {
+                    return;
+                }
+                logger.trace("hedge task with priority {}", taskWrapper.getPriority());
+                TaskWrapper<TASK, RESULT> copy = taskWrapper.hedge();
+                copy.enqueued(sequence.incrementAndGet(), System.nanoTime());
+                requestQueue.offer(copy);
+            }, options.getHedgeDelayNanos(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ree) {
+            // Ограничитель остановлен: задача уже получила разрешение и выполняется без копии
+            logger.debug("scheduler is stopped, task is not hedged");
+        }
+    }
+
+    /**
+     * Возвращает задачу в очередь после задержки, если попытка завершилась исключением и политика требует повтора.
+     * Задача сохраняет свое место в очереди; повтор, не успевающий до крайнего срока, завершает задачу исключением.
+     *
+     * @param taskWrapper выполненная задача
+     */
+    private void retry(TaskWrapper<TASK, RESULT> taskWrapper) {
+        long delay = taskWrapper.pollRetryDelay();
+        if (delay < 0 || taskWrapper.isDone()) {
+            return;
+        }
+        if (delay >= taskWrapper.nanosToDeadline()) {
+            taskWrapper.exceptionally(taskWrapper.getFailure());
+            return;
+        }
+        metrics.onRetried();
+        logger.debug("retry task in {} ms", TimeUnit.NANOSECONDS.toMillis(delay));
+        requeue(taskWrapper, delay);
+    }
+
+    /**
+     * Откладывает задачу до появления разрешения у ограничителя.
+     *
+     * @param taskWrapper отложенная задача
+     * @param denied      ограничитель, не выдавший разрешение
+     */
+    private void defer(TaskWrapper<TASK, RESULT> taskWrapper, RateLimiter denied) {
+        // Задача с крайним сроком возвращается в очередь не позже срока, чтобы завершиться без ожидания разрешения
+        // Задача со стоимостью больше единицы ждет, пока накопится вся стоимость, а более легкие задачи за ней
+        // расходуют оставшиеся разрешения
+        long delay = Math.max(Math.min(denied.nanosToPermits(taskWrapper.getPermits()), taskWrapper.nanosToDeadline()),
+            MIN_DEFER_NANOS);
+        logger.trace("defer task for {} ns", delay);
+        requeue(taskWrapper, delay);
+    }
+
+    /**
+     * Возвращает задачу в очередь после задержки. Отложенные задачи запоминаются, чтобы дождаться их в
+     * {@link #drain(long, TimeUnit)}, отменить или сохранить в журнал при остановке.
+     *
+     * @param taskWrapper отложенная задача
+     * @param delayNanos  задержка в наносекундах
+     */
+    private void requeue(TaskWrapper<TASK, RESULT> taskWrapper, long delayNanos) {
+        deferred.add(taskWrapper);
+        try {
+            scheduler.schedule(() -> {
+                // Пока задача переходит в очередь, она учтена как выполняемая, чтобы drain не пропустил ее
+                active.incrementAndGet();
+                try {
+                    deferred.remove(taskWrapper);
+                    if (taskWrapper.isDone()) {
+                        metrics.onCancelled();
+                    } else {
+                        requestQueue.offer(taskWrapper);
+                    }
+                } finally {
+                    active.decrementAndGet();
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ree) {
+            // Ограничитель остановлен: задачу, которую не забрала остановка, завершает отложивший ее поток
+            if (deferred.remove(taskWrapper)) {
+                abandon(taskWrapper);
+            }
+        }
+    }
+
+    /**
+     * Завершает задачу, которую нельзя отложить после остановки ограничителя: сохраняет ее в журнал, если он
+     * подключен, и завершает {@link CancellationException}. Копия дублированного запроса отбрасывается.
+     *
+     * @param taskWrapper отложенная задача
+     */
+    private void abandon(TaskWrapper<TASK, RESULT> taskWrapper) {
+        if (taskWrapper.isHedge() || taskWrapper.isDone()) {
+            return;
+        }
+        if (journal != null && taskWrapper.getTask() != null) {
+            keep(taskWrapper);
+            taskWrapper.exceptionally(new CancellationException("limiter stopped, task saved to journal"));
+        } else {
+            taskWrapper.exceptionally(new CancellationException("limiter stopped"));
+        }
+    }
+
+    /**
+     * Политика при заполнении очереди до емкости ограничителя. Задачи с приоритетом ниже safetyPriority при
+     * заполненной очереди отклоняются сразу при любой политике.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Отклонить новую задачу.
+         */
+        REJECT_NEW,
+        /**
+         * Вытеснить задачу с наименьшим приоритетом, если он ниже приоритета новой задачи, иначе отклонить новую.
+         */
+        DROP_LOWEST_PRIORITY,
+        /**
+         * Ожидать освобождения места в вызывающем потоке не дольше заданного времени.
+         */
+        BLOCK
+    }
+
     /**
      * Интерфейс обработки задачи.
      *
@@ -127,4 +1263,335 @@ public class TaskLimiter<TASK, RESULT> {
     public interface TaskProcess<T, R> {
         R runTask(T req) throws InterruptedException;
     }
+
+    /**
+     * Построитель ограничителя. Лимиты задаются правилами (количество разрешений, окно) в любом количестве; разрешение
+     * расходуется, только если его выдали все окна.
+     *
+     * @param <TASK>   тип задачи
+     * @param <RESULT> тип результата
+     */
+    public static class Builder<TASK, RESULT> {
+
+        private final List<LimitRule> rules = new ArrayList<>();
+        private final List<RateLimiter> limiters = new ArrayList<>();
+        private int threadPoolSize = 1;
+        private String name;
+        private int safetyPriority;
+        private RateLimiter.Strategy strategy = RateLimiter.Strategy.FIXED_WINDOW;
+        private int capacity = Integer.MAX_VALUE;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT_NEW;
+        private long blockTimeout;
+        private TimeUnit blockTimeoutUnit = TimeUnit.MILLISECONDS;
+        private SchedulingPolicy schedulingPolicy = SchedulingPolicy.priority();
+        private MetricsExporter metricsExporter;
+        private boolean virtualThreads;
+        private ExecutorService taskExecutor;
+        private int maxInFlight = Integer.MAX_VALUE;
+        private TaskJournal<TASK> journal;
+        private TaskProcess<TASK, RESULT> replayProcess;
+        private ToIntFunction<TASK> costFunction;
+
+        /**
+         * Устанавливает количество потоков, обрабатывающих очередь запросов.
+         *
+         * @param threadPoolSize количество потоков
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> threadPoolSize(int threadPoolSize) {
+            this.threadPoolSize = threadPoolSize;
+            return this;
+        }
+
+        /**
+         * Устанавливает название балансера.
+         *
+         * @param name название балансера
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Устанавливает минимальное сохраняемое значение приоритета при достижении любого из лимитов.
+         *
+         * @param safetyPriority значение приоритета
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> safetyPriority(int safetyPriority) {
+            this.safetyPriority = safetyPriority;
+            return this;
+        }
+
+        /**
+         * Устанавливает стратегию ограничения для правил {@link #limit(int, long, TimeUnit)}.
+         *
+         * @param strategy стратегия ограничения частоты
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> strategy(RateLimiter.Strategy strategy) {
+            this.strategy = strategy;
+            return this;
+        }
+
+        /**
+         * Устанавливает емкость: наибольшее количество незавершенных задач (в очереди, отложенных и выполняемых).
+         * По умолчанию емкость не ограничена.
+         *
+         * @param capacity емкость
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> capacity(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("capacity must be positive");
+            }
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * Устанавливает политику при заполнении очереди.
+         *
+         * @param overflowPolicy политика переполнения
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Устанавливает политику {@link OverflowPolicy#BLOCK} с наибольшим временем ожидания места.
+         *
+         * @param timeout  время ожидания
+         * @param timeUnit единица измерения времени ожидания
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> blockTimeout(long timeout, TimeUnit timeUnit) {
+            this.overflowPolicy = OverflowPolicy.BLOCK;
+            this.blockTimeout = timeout;
+            this.blockTimeoutUnit = timeUnit;
+            return this;
+        }
+
+        /**
+         * Устанавливает политику порядка выдачи задач из очереди. По умолчанию {@link SchedulingPolicy#priority()}.
+         *
+         * @param schedulingPolicy политика порядка выдачи
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> schedulingPolicy(SchedulingPolicy schedulingPolicy) {
+            this.schedulingPolicy = schedulingPolicy;
+            return this;
+        }
+
+        /**
+         * Включает режим диспетчера: один поток выдает разрешения, а каждая задача выполняется в своем виртуальном
+         * потоке. Количество одновременно выполняемых задач ограничивается лимитами и {@link #maxInFlight(int)}, а не
+         * размером пула. На JVM без виртуальных потоков (до JDK 21) задачи выполняются в потоках-демонах,
+         * создаваемых по мере необходимости.
+         *
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> virtualThreads() {
+            this.virtualThreads = true;
+            return this;
+        }
+
+        /**
+         * Включает режим диспетчера с собственным исполнителем задач. Исполнитель не останавливается
+         * {@link TaskLimiter#shutdownAll()}.
+         *
+         * @param taskExecutor исполнитель задач
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> taskExecutor(ExecutorService taskExecutor) {
+            this.taskExecutor = taskExecutor;
+            return this;
+        }
+
+        /**
+         * Устанавливает наибольшее количество одновременно выполняемых задач в режиме диспетчера.
+         *
+         * @param maxInFlight количество задач
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> maxInFlight(int maxInFlight) {
+            if (maxInFlight <= 0) {
+                throw new IllegalArgumentException("maxInFlight must be positive");
+            }
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Включает метрики ограничителя и регистрирует их в экспортере под названием ограничителя, которое в этом
+         * случае обязательно. Без экспортера метрики не записываются.
+         *
+         * @param metricsExporter экспортер метрик, например {@link ru.micode.metrics.JmxMetricsExporter}
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> metrics(MetricsExporter metricsExporter) {
+            this.metricsExporter = metricsExporter;
+            return this;
+        }
+
+        /**
+         * Подключает журнал отложенных задач. Задачи, не поместившиеся в очередь емкости {@link #capacity(int)},
+         * записываются в журнал вместо отклонения, а при {@link TaskLimiter#shutdownAll()} в журнал сохраняются
+         * задачи из очереди и отложенные до появления разрешения. При создании ограничителя сохраненные задачи
+         * ставятся в очередь в порядке убывания приоритета.
+         *
+         * @param journal       журнал задач
+         * @param replayProcess обработка задач, восстановленных из журнала после перезапуска
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> journal(TaskJournal<TASK> journal, TaskProcess<TASK, RESULT> replayProcess) {
+            this.journal = journal;
+            this.replayProcess = replayProcess;
+            return this;
+        }
+
+        /**
+         * Устанавливает функцию стоимости задачи в разрешениях, например по тарифу конечной точки API. Задача
+         * забирает свою стоимость из каждого окна атомарно, а отложенная из-за лимита дорогая задача не задерживает
+         * более легкие задачи, которым хватает оставшихся разрешений. Стоимость из {@link TaskOptions} имеет
+         * приоритет над функцией. Без функции задача стоит одно разрешение.
+         *
+         * @param costFunction функция стоимости, возвращает значение больше нуля
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> cost(ToIntFunction<TASK> costFunction) {
+            this.costFunction = costFunction;
+            return this;
+        }
+
+        /**
+         * Добавляет лимит: не более permits задач за окно.
+         *
+         * @param permits  количество разрешений за окно
+         * @param window   длительность окна
+         * @param timeUnit единица измерения длительности окна
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> limit(int permits, long window, TimeUnit timeUnit) {
+            rules.add(new LimitRule(permits, window, timeUnit));
+            return this;
+        }
+
+        /**
+         * Добавляет собственный ограничитель. Он опрашивается после окон, заданных правилами.
+         *
+         * @param rateLimiter ограничитель
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> limiter(RateLimiter rateLimiter) {
+            limiters.add(rateLimiter);
+            return this;
+        }
+
+        /**
+         * Создает ограничитель и запускает обслуживающие потоки.
+         *
+         * @return ограничитель выполнения задач
+         */
+        public TaskLimiter<TASK, RESULT> build() {
+            if (metricsExporter != null && (name == null || name.isBlank())) {
+                throw new IllegalArgumentException("name is required to export metrics");
+            }
+            return new TaskLimiter<>(this);
+        }
+
+        private ExecutorService createTaskExecutor() {
+            if (taskExecutor != null || !virtualThreads) {
+                return taskExecutor;
+            }
+            if (VirtualThreads.isAvailable()) {
+                return VirtualThreads.newVirtualThreadPerTaskExecutor();
+            }
+            logger.info("virtual threads are not supported, balancer {} uses cached daemon threads", name);
+            final String nameBalancer = name;
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable);
+                    thread.setName("balancer-" + nameBalancer + "-task-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        /**
+         * Возвращает частоту самого короткого окна лимита для разгона после паузы.
+         *
+         * @return разрешений в наносекунду, 0 - если окон нет
+         */
+        private double rampRate() {
+            return rules.stream()
+                .min(Comparator.comparingLong(rule -> rule.timeUnit.toNanos(rule.window)))
+                .map(rule -> rule.permits / (double) rule.timeUnit.toNanos(rule.window))
+                .orElse(0.0);
+        }
+
+        private CompositeRateLimiter createLimiter() {
+            return LimitRule.compose(name, rules, strategy, limiters);
+        }
+    }
+
+    /**
+     * Правило лимита: количество разрешений за окно.
+     */
+    static final class LimitRule {
+
+        private final int permits;
+        private final long window;
+        private final TimeUnit timeUnit;
+
+        LimitRule(int permits, long window, TimeUnit timeUnit) {
+            if (window <= 0) {
+                throw new IllegalArgumentException("window must be positive");
+            }
+            this.permits = permits;
+            this.window = window;
+            this.timeUnit = timeUnit;
+        }
+
+        /**
+         * Создает ограничитель из правил, упорядоченных от короткого окна к длинному, и собственных ограничителей.
+         *
+         * @param name     название ограничителя
+         * @param rules    правила лимитов
+         * @param strategy стратегия ограничения для правил
+         * @param limiters собственные ограничители
+         * @return ограничитель из нескольких окон
+         */
+        static CompositeRateLimiter compose(String name, List<LimitRule> rules, RateLimiter.Strategy strategy,
+                                            List<RateLimiter> limiters) {
+            List<RateLimiter> windows = new ArrayList<>();
+            rules.stream()
+                .sorted(Comparator.comparingLong(rule -> rule.timeUnit.toNanos(rule.window)))
+                .forEach(rule -> windows.add(strategy.create(rule.name(name), rule.permits, rule.window,
+                    rule.timeUnit)));
+            windows.addAll(limiters);
+            return new CompositeRateLimiter(name, windows);
+        }
+
+        long windowNanos() {
+            return timeUnit.toNanos(window);
+        }
+
+        String name(String nameBalancer) {
+            String windowName = window == 1
+                ? timeUnit.name()
+                : window + "_" + timeUnit.name();
+            return nameBalancer == null
+                ? windowName
+                : nameBalancer + "_" + windowName;
+        }
+    }
 }
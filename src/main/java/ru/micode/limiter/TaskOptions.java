@@ -0,0 +1,121 @@
+package ru.micode.limiter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Параметры выполнения отдельной задачи: повторы, крайний срок, дублирование запроса и стоимость в разрешениях.
+ */
+public final class TaskOptions {
+
+    private final RetryPolicy retryPolicy;
+    private final long deadlineNanos;
+    private final long hedgeDelayNanos;
+    private final int cost;
+
+    private TaskOptions(Builder builder) {
+        this.retryPolicy = builder.retryPolicy;
+        this.deadlineNanos = builder.deadlineNanos;
+        this.hedgeDelayNanos = builder.hedgeDelayNanos;
+        this.cost = builder.cost;
+    }
+
+    /**
+     * Создает построитель параметров.
+     *
+     * @return построитель
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    long getHedgeDelayNanos() {
+        return hedgeDelayNanos;
+    }
+
+    int getCost() {
+        return cost;
+    }
+
+    /**
+     * Построитель параметров задачи.
+     */
+    public static class Builder {
+
+        private RetryPolicy retryPolicy;
+        private long deadlineNanos;
+        private long hedgeDelayNanos;
+        private int cost;
+
+        /**
+         * Устанавливает политику повторов после исключения.
+         *
+         * @param retryPolicy политика повторов
+         * @return построитель
+         */
+        public Builder retry(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Устанавливает крайний срок с момента постановки в очередь. Задача, не запущенная к сроку, завершается
+         * {@link java.util.concurrent.TimeoutException} без расхода разрешения; запущенная задача не прерывается.
+         *
+         * @param deadline крайний срок
+         * @param timeUnit единица измерения срока
+         * @return построитель
+         */
+        public Builder deadline(long deadline, TimeUnit timeUnit) {
+            this.deadlineNanos = timeUnit.toNanos(deadline);
+            return this;
+        }
+
+        /**
+         * Включает дублирование запроса для идемпотентных задач: если задача выполняется дольше задержки, ее копия
+         * ставится в очередь и получает собственное разрешение, результатом становится первый полученный ответ.
+         * Копия не ставится, если у ограничителя нет свободных разрешений, и отбрасывается, если разрешение для нее
+         * не выдано.
+         *
+         * @param delay    задержка перед дублированием
+         * @param timeUnit единица измерения задержки
+         * @return построитель
+         */
+        public Builder hedge(long delay, TimeUnit timeUnit) {
+            this.hedgeDelayNanos = timeUnit.toNanos(delay);
+            return this;
+        }
+
+        /**
+         * Устанавливает стоимость задачи: количество разрешений, которые задача забирает из каждого окна лимита
+         * атомарно. Стоимость задачи заменяет функцию стоимости ограничителя
+         * ({@link TaskLimiter.Builder#cost(java.util.function.ToIntFunction)}).
+         *
+         * @param cost количество разрешений, больше нуля
+         * @return построитель
+         */
+        public Builder cost(int cost) {
+            if (cost <= 0) {
+                throw new IllegalArgumentException("cost must be positive");
+            }
+            this.cost = cost;
+            return this;
+        }
+
+        /**
+         * Создает параметры.
+         *
+         * @return параметры задачи
+         */
+        public TaskOptions build() {
+            return new TaskOptions(this);
+        }
+    }
+}
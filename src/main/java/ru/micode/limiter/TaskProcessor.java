@@ -0,0 +1,302 @@
+package ru.micode.limiter;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Адаптер {@link TaskLimiter} к {@link Flow}: каждый элемент издателя выполняется как задача ограничителя, а
+ * результаты передаются подписчику.
+ *
+ * <p>Элементы запрашиваются у издателя только в пределах окна {@code window}: элементы в очереди, выполняемые и
+ * результаты, которые подписчик еще не запросил, вместе не превышают окна, поэтому память ограничена при любом
+ * размере потока. Внутри окна запрос издателю не превышает доступных разрешений ограничителя и свободных мест
+ * в его очереди; пустая половина окна запрашивается целиком, чтобы задачи не выполнялись по одной. Результаты
+ * выдаются в порядке элементов ({@link Builder#ordered(boolean)}) или в порядке завершения задач.
+ *
+ * <p>Исключение задачи завершает поток: издатель отменяется, незавершенные задачи отменяются, подписчик получает
+ * исключение. Процессор обслуживает одного подписчика.
+ *
+ * @param <TASK>   тип задачи
+ * @param <RESULT> тип результата
+ */
+public class TaskProcessor<TASK, RESULT> implements Flow.Processor<TASK, RESULT> {
+
+    private static final Logger logger = LoggerFactory.getLogger(TaskProcessor.class);
+    private final TaskLimiter<TASK, RESULT> taskLimiter;
+    private final TaskLimiter.TaskProcess<TASK, RESULT> taskProcess;
+    private final int priority;
+    private final int window;
+    private final boolean ordered;
+    private final Queue<TaskWrapper<TASK, RESULT>> results = new ConcurrentLinkedQueue<>();
+    private final Set<TaskWrapper<TASK, RESULT>> tasks = ConcurrentHashMap.newKeySet();
+    private final AtomicReference<Flow.Subscription> upstream = new AtomicReference<>();
+    private final AtomicReference<Flow.Subscriber<? super RESULT>> downstream = new AtomicReference<>();
+    private final AtomicInteger requested = new AtomicInteger();
+    private final AtomicInteger buffered = new AtomicInteger();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile boolean upstreamDone;
+    private volatile Throwable error;
+    private volatile boolean cancelled;
+    private boolean terminated;
+
+    private TaskProcessor(Builder<TASK, RESULT> builder) {
+        if (builder.window <= 0) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        this.taskLimiter = builder.taskLimiter;
+        this.taskProcess = builder.taskProcess;
+        this.priority = builder.priority;
+        this.window = builder.window;
+        this.ordered = builder.ordered;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super RESULT> subscriber) {
+        if (!downstream.compareAndSet(null, subscriber)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("processor supports a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    error = new IllegalArgumentException("non-positive request: " + n);
+                } else {
+                    demand.accumulateAndGet(n, (current, add) -> current + add < 0
+                        ? Long.MAX_VALUE
+                        : current + add);
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                drain();
+            }
+        });
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (!upstream.compareAndSet(null, subscription)) {
+            subscription.cancel();
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(TASK item) {
+        requested.decrementAndGet();
+        if (cancelled || error != null) {
+            return;
+        }
+        buffered.incrementAndGet();
+        TaskWrapper<TASK, RESULT> taskWrapper = taskLimiter.createTask(item, priority, taskProcess);
+        tasks.add(taskWrapper);
+        if (ordered) {
+            results.offer(taskWrapper);
+            taskWrapper.whenDone(this::drain);
+        } else {
+            taskWrapper.whenDone(() -> {
+                results.offer(taskWrapper);
+                drain();
+            });
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        drain();
+    }
+
+    /**
+     * Выдает готовые результаты и запрашивает элементы у издателя. Выполняется одним потоком за раз: вызов из другого
+     * потока во время выдачи только отмечает, что нужен еще один проход.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            Flow.Subscriber<? super RESULT> subscriber = downstream.get();
+            if (subscriber != null && !terminated) {
+                emit(subscriber);
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void emit(Flow.Subscriber<? super RESULT> subscriber) {
+        if (cancelled || error != null) {
+            terminate(subscriber, cancelled
+                ? null
+                : error);
+            return;
+        }
+        long emitted = 0;
+        final long limit = demand.get();
+        while (emitted < limit) {
+            TaskWrapper<TASK, RESULT> head = results.peek();
+            if (head == null || !head.isDone()) {
+                break;
+            }
+            results.poll();
+            tasks.remove(head);
+            buffered.decrementAndGet();
+            Throwable failure = head.getFailure();
+            if (failure != null) {
+                terminate(subscriber, failure);
+                return;
+            }
+            subscriber.onNext(head.getResult());
+            emitted++;
+        }
+        if (emitted > 0 && limit != Long.MAX_VALUE) {
+            demand.addAndGet(-emitted);
+        }
+        if (upstreamDone && buffered.get() == 0) {
+            terminated = true;
+            subscriber.onComplete();
+            return;
+        }
+        requestUpstream();
+    }
+
+    /**
+     * Запрашивает у издателя свободную часть окна, но не больше доступных разрешений и мест в очереди ограничителя.
+     */
+    private void requestUpstream() {
+        Flow.Subscription subscription = upstream.get();
+        if (subscription == null || upstreamDone) {
+            return;
+        }
+        int outstanding = requested.get() + buffered.get();
+        int free = window - outstanding;
+        if (free <= 0) {
+            return;
+        }
+        int n = Math.min(free, Math.max(taskLimiter.availablePermits(), free * 2 >= window
+            ? free
+            : 0));
+        n = Math.min(n, taskLimiter.remainingCapacity());
+        if (n <= 0 && outstanding == 0) {
+            // Без ожидаемых элементов процессор не проснется сам, поэтому хотя бы один элемент запрашивается всегда
+            n = 1;
+        }
+        if (n > 0) {
+            requested.addAndGet(n);
+            logger.trace("request {} items", n);
+            subscription.request(n);
+        }
+    }
+
+    private void terminate(Flow.Subscriber<? super RESULT> subscriber, Throwable failure) {
+        terminated = true;
+        Flow.Subscription subscription = upstream.get();
+        if (subscription != null && !upstreamDone) {
+            subscription.cancel();
+        }
+        tasks.forEach(TaskWrapper::cancel);
+        tasks.clear();
+        results.clear();
+        if (failure != null) {
+            logger.debug("stream failed: {}", failure.toString());
+            subscriber.onError(failure);
+        }
+    }
+
+    /**
+     * Построитель процессора.
+     *
+     * @param <TASK>   тип задачи
+     * @param <RESULT> тип результата
+     */
+    public static class Builder<TASK, RESULT> {
+
+        private final TaskLimiter<TASK, RESULT> taskLimiter;
+        private final TaskLimiter.TaskProcess<TASK, RESULT> taskProcess;
+        private int priority;
+        private int window = 256;
+        private boolean ordered = true;
+
+        Builder(TaskLimiter<TASK, RESULT> taskLimiter, TaskLimiter.TaskProcess<TASK, RESULT> taskProcess) {
+            this.taskLimiter = taskLimiter;
+            this.taskProcess = taskProcess;
+        }
+
+        /**
+         * Устанавливает приоритет задач потока.
+         *
+         * @param priority значение приоритета
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> priority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * Устанавливает окно: наибольшее количество элементов, запрошенных у издателя и еще не переданных подписчику.
+         * По умолчанию 256.
+         *
+         * @param window размер окна
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> window(int window) {
+            this.window = window;
+            return this;
+        }
+
+        /**
+         * Устанавливает порядок выдачи результатов: в порядке элементов (по умолчанию) или в порядке завершения
+         * задач. В порядке элементов медленная задача задерживает готовые результаты за ней.
+         *
+         * @param ordered true - в порядке элементов
+         * @return построитель
+         */
+        public Builder<TASK, RESULT> ordered(boolean ordered) {
+            this.ordered = ordered;
+            return this;
+        }
+
+        /**
+         * Создает процессор.
+         *
+         * @return процессор
+         */
+        public TaskProcessor<TASK, RESULT> build() {
+            return new TaskProcessor<>(this);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package ru.micode.limiter;
+
+/**
+ * Преобразование задачи в байты для журнала ({@link TaskJournal}) и обратно.
+ *
+ * @param <T> тип задачи
+ */
+public interface TaskSerializer<T> {
+
+    /**
+     * Преобразует задачу в байты.
+     *
+     * @param task задача
+     * @return байты задачи
+     */
+    byte[] serialize(T task);
+
+    /**
+     * Восстанавливает задачу из байт.
+     *
+     * @param data байты задачи
+     * @return задача
+     */
+    T deserialize(byte[] data);
+}
@@ -1,24 +1,56 @@
 package ru.micode.limiter;
 
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.BiConsumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Обертка задачи с Future.
+ *
+ * <p>Результат можно получить блокирующим ожиданием ({@link #waitFor(long, TimeUnit)}) или без удержания потока:
+ * через {@link #toCompletableFuture()}, {@link #toCompletionStage()} или {@link #whenComplete(BiConsumer)}.
  */
 public class TaskWrapper<T, R> implements Comparable<TaskWrapper<T, R>> {
 
     private static final Logger logger = LoggerFactory.getLogger(TaskWrapper.class);
+    private static final int IDLE = 0;
+    private static final int RUNNING = 1;
+    private static final int EXPIRING = 2;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<TaskWrapper> SLOT =
+        AtomicIntegerFieldUpdater.newUpdater(TaskWrapper.class, "slot");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<TaskWrapper> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(TaskWrapper.class, "state");
     private final T task;
     private final CompletableFuture<R> future;
     private final TaskLimiter.TaskProcess<T, R> process;
     private int priority;
+    private CompositeRateLimiter rateLimiter;
+    private volatile Queue<? super TaskWrapper<T, R>> queue;
+    private long sequence;
+    private long enqueueNanos;
+    private TaskOptions options;
+    private long deadlineNanos;
+    private int permits;
+    private volatile long journalPosition = -1;
+    private boolean hedge;
+    private int attempts;
+    private long retryDelayNanos = -1;
+    private volatile Throwable attemptFailure;
+    private volatile int state;
+    private volatile int slot;
 
     public TaskWrapper(T task, int priority, TaskLimiter.TaskProcess<T, R> taskProcess, CompletableFuture<R> future) {
         this.priority = priority;
@@ -28,7 +60,8 @@ public class TaskWrapper<T, R> implements Comparable<TaskWrapper<T, R>> {
     }
 
     /**
-     * Возвращает результат с временем ожидания.
+     * Возвращает результат с временем ожидания. Если время истекло, а задача еще не запущена, она убирается из
+     * очереди и не расходует разрешение.
      *
      * @param time     значение таймаута
      * @param timeUnit единица измерения таймаута
@@ -37,13 +70,18 @@ public class TaskWrapper<T, R> implements Comparable<TaskWrapper<T, R>> {
     public R waitForThrow(long time, TimeUnit timeUnit) throws RuntimeException {
         try {
             return future.get(time, timeUnit);
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+        } catch (TimeoutException e) {
+            // Результат больше никто не ждет: задача, еще не запущенная, убирается из очереди
+            expire();
+            throw new RuntimeException(e);
+        } catch (InterruptedException | ExecutionException e) {
             throw new RuntimeException(e);
         }
     }
 
     /**
-     * Возвращает результат операции с временим ожидания.
+     * Возвращает результат операции с временим ожидания. Если время истекло, а задача еще не запущена, она убирается
+     * из очереди и не расходует разрешение.
      *
      * @param time     значение таймаута
      * @param timeUnit единица измерения таймаута
@@ -53,23 +91,201 @@ public class TaskWrapper<T, R> implements Comparable<TaskWrapper<T, R>> {
         try {
             return Optional.of(waitForThrow(time, timeUnit));
         } catch (Exception e) {
-            logger.warn("an error", e);
+            logger.debug("task result is not available: {}", e.getCause() == null
+                ? e
+                : e.getCause());
         }
         return Optional.empty();
     }
 
+    /**
+     * Возвращает Future результата. Отмена возвращенного Future отменяет задачу ({@link #cancel()}).
+     *
+     * @return Future результата
+     */
+    public CompletableFuture<R> toCompletableFuture() {
+        CompletableFuture<R> copy = future.copy();
+        copy.whenComplete((result, throwable) -> {
+            if (throwable instanceof CancellationException) {
+                cancel();
+            }
+        });
+        return copy;
+    }
+
+    /**
+     * Возвращает результат как {@link CompletionStage} без возможности завершить или отменить задачу.
+     *
+     * @return стадия вычисления результата
+     */
+    public CompletionStage<R> toCompletionStage() {
+        return future.minimalCompletionStage();
+    }
+
+    /**
+     * Регистрирует обработчик результата, вызываемый после завершения задачи потоком, завершившим задачу, или
+     * текущим потоком, если задача уже завершена.
+     *
+     * @param action обработчик результата или исключения
+     * @return обертка задачи
+     */
+    public TaskWrapper<T, R> whenComplete(BiConsumer<? super R, ? super Throwable> action) {
+        future.whenComplete(action);
+        return this;
+    }
+
+    /**
+     * Отменяет задачу, если она еще не выполнена, и убирает ее из очереди. Выполняемая задача не прерывается.
+     *
+     * @return true, если задача отменена этим вызовом
+     */
+    public boolean cancel() {
+        boolean cancelled = future.completeExceptionally(new CancellationException("task cancelled"));
+        Queue<? super TaskWrapper<T, R>> current = queue;
+        if (cancelled && current != null) {
+            current.remove(this);
+        }
+        return cancelled;
+    }
+
+    /**
+     * Проверяет, завершена ли задача (результатом, исключением или отменой).
+     *
+     * @return true, если задача завершена
+     */
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    boolean isCompletedExceptionally() {
+        return future.isCompletedExceptionally();
+    }
+
+    /**
+     * Возвращает исключение, которым завершилась задача.
+     *
+     * @return исключение или null, если задача выполнена успешно. Для задачи, ожидающей повтора, - исключение
+     *     последней попытки
+     */
+    Throwable getFailure() {
+        if (!future.isDone()) {
+            return attemptFailure;
+        }
+        if (!future.isCompletedExceptionally()) {
+            return null;
+        }
+        try {
+            future.getNow(null);
+            return null;
+        } catch (CompletionException e) {
+            return e.getCause();
+        } catch (CancellationException e) {
+            return e;
+        }
+    }
+
+    /**
+     * Возвращает результат успешно выполненной задачи без ожидания.
+     *
+     * @return результат или null, если задача не завершена
+     */
+    R getResult() {
+        return future.getNow(null);
+    }
+
+    /**
+     * Проверяет, отменена ли задача.
+     *
+     * @return true, если задача отменена
+     */
+    public boolean isCancelled() {
+        return future.isCancelled();
+    }
+
     /**
      * Запускает обработку задачи.
      */
     public void run() {
+        // Состояние занимается до проверки завершения, чтобы истечение срока не завершило уже запущенную задачу
+        if (!STATE.compareAndSet(this, IDLE, RUNNING)) {
+            return;
+        }
         try {
+            if (future.isDone()) {
+                return;
+            }
             R r = process.runTask(task);
             future.complete(r);
         } catch (Exception e) {
-            future.completeExceptionally(e);
+            failed(e);
+        } finally {
+            state = IDLE;
         }
     }
 
+    /**
+     * Завершает попытку исключением: планирует повтор по политике или завершает задачу. Исключение копии
+     * дублированного запроса не завершает задачу - результат дает исходная задача.
+     *
+     * @param failure исключение попытки
+     */
+    private void failed(Exception failure) {
+        attemptFailure = failure;
+        if (hedge) {
+            return;
+        }
+        RetryPolicy retryPolicy = options == null
+            ? null
+            : options.getRetryPolicy();
+        if (retryPolicy != null && retryPolicy.shouldRetry(++attempts, failure)) {
+            retryDelayNanos = retryPolicy.delayNanos(attempts, failure);
+            return;
+        }
+        future.completeExceptionally(failure);
+    }
+
+    /**
+     * Забирает задержку запланированного повтора.
+     *
+     * @return задержка в наносекундах или -1, если повтор не нужен
+     */
+    long pollRetryDelay() {
+        long delay = retryDelayNanos;
+        retryDelayNanos = -1;
+        return delay;
+    }
+
+    /**
+     * Завершает еще не запущенную задачу {@link TimeoutException} и убирает ее из очереди.
+     *
+     * @return true, если задача завершена этим вызовом
+     */
+    boolean expire() {
+        if (!STATE.compareAndSet(this, IDLE, EXPIRING)) {
+            return false;
+        }
+        boolean expired;
+        try {
+            expired = future.completeExceptionally(new TimeoutException("task deadline exceeded"));
+        } finally {
+            state = IDLE;
+        }
+        Queue<? super TaskWrapper<T, R>> current = queue;
+        if (expired && current != null) {
+            current.remove(this);
+        }
+        return expired;
+    }
+
+    /**
+     * Завершает задачу готовым результатом.
+     *
+     * @param result результат выполнения операции
+     */
+    void complete(R result) {
+        future.complete(result);
+    }
+
     /**
      * Запускает исключение с сообщением об ошибке.
      *
@@ -88,6 +304,15 @@ public class TaskWrapper<T, R> implements Comparable<TaskWrapper<T, R>> {
         future.completeExceptionally(throwable);
     }
 
+    /**
+     * Возвращает задачу.
+     *
+     * @return задача
+     */
+    T getTask() {
+        return task;
+    }
+
     /**
      * Возвращает текущий приоритет задачи.
      *
@@ -106,10 +331,166 @@ public class TaskWrapper<T, R> implements Comparable<TaskWrapper<T, R>> {
         this.priority = priority;
     }
 
+    /**
+     * Возвращает собственный ограничитель задачи (например, лимиты ключа), проверяемый до общих лимитов.
+     *
+     * @return ограничитель или null
+     */
+    CompositeRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    void setRateLimiter(CompositeRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Устанавливает очередь, из которой задача убирается при отмене.
+     *
+     * @param queue очередь ограничителя
+     */
+    void setQueue(Queue<? super TaskWrapper<T, R>> queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Запоминает порядковый номер и время первой постановки задачи в очередь.
+     *
+     * @param sequence     порядковый номер
+     * @param enqueueNanos время постановки в очередь
+     */
+    void enqueued(long sequence, long enqueueNanos) {
+        this.sequence = sequence;
+        this.enqueueNanos = enqueueNanos;
+    }
+
+    /**
+     * Устанавливает параметры выполнения задачи, крайний срок отсчитывается от текущего момента.
+     *
+     * @param options параметры задачи
+     */
+    void setOptions(TaskOptions options) {
+        this.options = options;
+        if (options.getCost() > 0) {
+            this.permits = options.getCost();
+        }
+        if (options.getDeadlineNanos() > 0) {
+            this.deadlineNanos = System.nanoTime() + options.getDeadlineNanos();
+        }
+    }
+
+    TaskOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Возвращает время до крайнего срока задачи.
+     *
+     * @return время в наносекундах, не больше нуля - если срок истек, {@link Long#MAX_VALUE} - если срок не задан
+     */
+    long nanosToDeadline() {
+        return deadlineNanos == 0
+            ? Long.MAX_VALUE
+            : deadlineNanos - System.nanoTime();
+    }
+
+    /**
+     * Создает копию задачи для дублированного запроса с общим результатом.
+     *
+     * @return копия задачи
+     */
+    TaskWrapper<T, R> hedge() {
+        TaskWrapper<T, R> copy = new TaskWrapper<>(task, priority, process, future);
+        copy.rateLimiter = rateLimiter;
+        copy.options = options;
+        copy.deadlineNanos = deadlineNanos;
+        copy.permits = permits;
+        copy.hedge = true;
+        return copy;
+    }
+
+    boolean isHedge() {
+        return hedge;
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    long getEnqueueNanos() {
+        return enqueueNanos;
+    }
+
+    /**
+     * Возвращает количество разрешений, расходуемых задачей.
+     *
+     * @return количество разрешений
+     */
+    int getPermits() {
+        return permits > 0
+            ? permits
+            : 1;
+    }
+
+    boolean hasCost() {
+        return permits > 0;
+    }
+
+    void setPermits(int permits) {
+        this.permits = permits;
+    }
+
+    /**
+     * Возвращает положение записи задачи в журнале, если задача не поместилась в очередь или прочитана из журнала.
+     *
+     * @return положение записи, -1 - если задача не связана с записью
+     */
+    long getJournalPosition() {
+        return journalPosition;
+    }
+
+    void setJournalPosition(long journalPosition) {
+        this.journalPosition = journalPosition;
+    }
+
+    /**
+     * Отмечает, что задача занимает место в очереди ограничителя.
+     */
+    void holdSlot() {
+        slot = 1;
+    }
+
+    /**
+     * Освобождает место задачи в очереди ограничителя. Место освобождается один раз: либо при завершении задачи, либо
+     * при передаче его другой задаче.
+     *
+     * @return true, если место было занято задачей и освобождено этим вызовом
+     */
+    boolean releaseSlot() {
+        return SLOT.compareAndSet(this, 1, 0);
+    }
+
+    /**
+     * Регистрирует действие, выполняемое после завершения задачи любым способом.
+     *
+     * @param action действие
+     */
+    void whenDone(Runnable action) {
+        future.whenComplete((result, throwable) -> action.run());
+    }
+
     @Override
     public int compareTo(TaskWrapper o) {
-        return o == null
-            ? -1
-            : Integer.compare(o.priority, priority);
+        if (o == null) {
+            return -1;
+        }
+        int compare = Integer.compare(o.priority, priority);
+        return compare == 0
+            ? Long.compare(sequence, o.sequence)
+            : compare;
     }
 }
\ No newline at end of file
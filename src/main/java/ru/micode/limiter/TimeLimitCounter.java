@@ -2,37 +2,64 @@ package ru.micode.limiter;
 
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Счетчик с обнулением за интервал времени.
+ *
+ * <p>Состояние счетчика хранится в одном {@link AtomicLong} и изменяется только через CAS, без мониторов. Пополнение
+ * вычисляется лениво по монотонному {@link System#nanoTime()} в момент обращения. Поддерживаются два режима
+ * ({@link Mode}): фиксированное окно и сглаженная корзина токенов.
  */
-public class TimeLimitCounter {
+public class TimeLimitCounter implements RateLimiter {
 
     private static final Logger logger = LoggerFactory.getLogger(TimeLimitCounter.class);
-    private final AtomicInteger counter;
-    private final long timeDelay;
-    private final TimeUnit timeUnit;
+    private static final long COUNTER_MASK = 0xFFFFFFFFL;
+    private final AtomicLong state;
+    private final Mode mode;
+    private final long windowNanos;
+    private final long intervalNanos;
+    private final long origin;
     private final int initValue;
-    private String nameCounter;
-    private long nextResetCounter;
+    private volatile String nameCounter;
 
     /**
-     * Конструктор с параметрами.
+     * Конструктор счетчика с фиксированным окном.
      *
      * @param resetCounterValue значение счетчика при сбросе
      * @param timeDelay         период сброса счетчика
      * @param timeUnit          единица измерения периода сброса счетчика
      */
     public TimeLimitCounter(int resetCounterValue, long timeDelay, TimeUnit timeUnit) {
+        this(resetCounterValue, timeDelay, timeUnit, Mode.FIXED_WINDOW);
+    }
+
+    /**
+     * Конструктор с параметрами.
+     *
+     * @param resetCounterValue значение счетчика при сбросе (емкость корзины для {@link Mode#TOKEN_BUCKET})
+     * @param timeDelay         период сброса счетчика (время полного пополнения корзины)
+     * @param timeUnit          единица измерения периода сброса счетчика
+     * @param mode              режим счетчика
+     */
+    public TimeLimitCounter(int resetCounterValue, long timeDelay, TimeUnit timeUnit, Mode mode) {
+        if (timeDelay <= 0) {
+            throw new IllegalArgumentException("timeDelay must be positive");
+        }
         this.nameCounter = timeUnit.name();
         this.initValue = resetCounterValue;
-        this.counter = new AtomicInteger(resetCounterValue);
-        this.timeDelay = timeDelay;
-        this.timeUnit = timeUnit;
+        this.mode = mode;
+        this.windowNanos = timeUnit.toNanos(timeDelay);
+        this.intervalNanos = resetCounterValue > 0
+            ? Math.max(1, windowNanos / resetCounterValue)
+            : windowNanos;
+        this.origin = System.nanoTime();
+        this.state = new AtomicLong(mode == Mode.FIXED_WINDOW
+            ? pack(0, resetCounterValue)
+            : 0);
     }
 
     /**
@@ -45,31 +72,232 @@ public class TimeLimitCounter {
         Optional.ofNullable(nameCounter).ifPresent(name -> this.nameCounter = name);
     }
 
+    /**
+     * Возвращает разрешение в счетчик.
+     *
+     * @return значение счетчика после увеличения
+     */
     public int incrementAndGet() {
-        checkAndReset();
-        return counter.incrementAndGet();
+        long now = System.nanoTime() - origin;
+        return mode == Mode.FIXED_WINDOW
+            ? addFixedWindow(now, 1)
+            : releaseToken(now, 1);
     }
 
+    /**
+     * Забирает разрешение из счетчика. Отрицательный результат означает, что лимит исчерпан. В режиме
+     * {@link Mode#TOKEN_BUCKET} при отсутствии токенов состояние не меняется и возвращается -1.
+     *
+     * @return значение счетчика после уменьшения
+     */
     public int decrementAndGet() {
-        checkAndReset();
-        return counter.decrementAndGet();
+        long now = System.nanoTime() - origin;
+        return mode == Mode.FIXED_WINDOW
+            ? addFixedWindow(now, -1)
+            : acquireToken(now, 1);
     }
 
+    /**
+     * Возвращает текущее значение счетчика с учетом пополнения.
+     *
+     * @return значение счетчика
+     */
     public int get() {
-        return counter.get();
+        long now = System.nanoTime() - origin;
+        if (mode == Mode.FIXED_WINDOW) {
+            long current = state.get();
+            return window(current) == windowIndex(now)
+                ? counter(current)
+                : initValue;
+        }
+        return tokens(now, Math.max(state.get(), now));
     }
 
-    private void checkAndReset() {
-        synchronized (this) {
-            long now = System.currentTimeMillis();
-            if (nextResetCounter < now) {
-                int val = counter.get();
-                if (logger.isDebugEnabled() && val < 0) {
-                    logger.debug("decrement counter {} exceeded {}", this.nameCounter, val);
+    public Mode getMode() {
+        return mode;
+    }
+
+    @Override
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    @Override
+    public boolean tryAcquire(int permits) {
+        long now = System.nanoTime() - origin;
+        return mode == Mode.FIXED_WINDOW
+            ? tryTakeFixedWindow(now, permits)
+            : acquireToken(now, permits) >= 0;
+    }
+
+    @Override
+    public void release() {
+        release(1);
+    }
+
+    @Override
+    public void release(int permits) {
+        long now = System.nanoTime() - origin;
+        if (mode == Mode.TOKEN_BUCKET) {
+            releaseToken(now, permits);
+            return;
+        }
+        int index = windowIndex(now);
+        while (true) {
+            long current = state.get();
+            if (window(current) != index || counter(current) >= initValue) {
+                return;
+            }
+            if (state.compareAndSet(current, pack(index, Math.min(initValue, counter(current) + permits)))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int available() {
+        return Math.max(0, get());
+    }
+
+    @Override
+    public int maxPermits() {
+        return Math.max(0, initValue);
+    }
+
+    @Override
+    public long nanosToNextPermit() {
+        long now = System.nanoTime() - origin;
+        if (mode == Mode.TOKEN_BUCKET) {
+            return initValue <= 0
+                ? windowNanos
+                : Math.max(0, state.get() + intervalNanos - windowNanos - now);
+        }
+        long current = state.get();
+        return window(current) != windowIndex(now) || counter(current) > 0
+            ? 0
+            : windowNanos - now % windowNanos;
+    }
+
+    @Override
+    public long nanosToPermits(int permits) {
+        long now = System.nanoTime() - origin;
+        if (mode == Mode.TOKEN_BUCKET) {
+            return initValue < permits
+                ? windowNanos
+                : Math.max(0, Math.max(state.get(), now) + permits * intervalNanos - windowNanos - now);
+        }
+        long current = state.get();
+        int value = window(current) != windowIndex(now)
+            ? initValue
+            : counter(current);
+        return value >= permits
+            ? 0
+            : windowNanos - now % windowNanos;
+    }
+
+    @Override
+    public String getName() {
+        return nameCounter;
+    }
+
+    private boolean tryTakeFixedWindow(long now, int permits) {
+        int index = windowIndex(now);
+        while (true) {
+            long current = state.get();
+            int value = window(current) != index
+                ? initValue
+                : counter(current);
+            if (value < permits) {
+                logger.trace("fixed window {} limit exceeded", this.nameCounter);
+                return false;
+            }
+            if (state.compareAndSet(current, pack(index, value - permits))) {
+                return true;
+            }
+        }
+    }
+
+    private int addFixedWindow(long now, int delta) {
+        int index = windowIndex(now);
+        while (true) {
+            long current = state.get();
+            boolean reset = window(current) != index;
+            int value = reset
+                ? initValue
+                : counter(current);
+            if (state.compareAndSet(current, pack(index, value + delta))) {
+                if (reset && logger.isDebugEnabled() && counter(current) < 0) {
+                    logger.debug("decrement counter {} exceeded {}", this.nameCounter, counter(current));
                 }
-                counter.set(initValue);
-                nextResetCounter = now + timeUnit.toMillis(timeDelay);
+                return value + delta;
             }
         }
     }
+
+    private int acquireToken(long now, int permits) {
+        if (initValue <= 0) {
+            return -1;
+        }
+        while (true) {
+            long tat = state.get();
+            long from = Math.max(tat, now);
+            long next = from + permits * intervalNanos;
+            if (next - now > windowNanos) {
+                logger.trace("token bucket {} is empty", this.nameCounter);
+                return -1;
+            }
+            if (state.compareAndSet(tat, next)) {
+                return tokens(now, next);
+            }
+        }
+    }
+
+    private int releaseToken(long now, int permits) {
+        while (true) {
+            long tat = state.get();
+            if (tat <= now) {
+                return tokens(now, now);
+            }
+            long next = Math.max(tat - permits * intervalNanos, now);
+            if (state.compareAndSet(tat, next)) {
+                return tokens(now, next);
+            }
+        }
+    }
+
+    private int tokens(long now, long tat) {
+        return initValue <= 0
+            ? 0
+            : (int) Math.min(initValue, (now + windowNanos - tat) / intervalNanos);
+    }
+
+    private int windowIndex(long now) {
+        return (int) (now / windowNanos);
+    }
+
+    private static long pack(int window, int counter) {
+        return ((long) window << 32) | (counter & COUNTER_MASK);
+    }
+
+    private static int window(long state) {
+        return (int) (state >>> 32);
+    }
+
+    private static int counter(long state) {
+        return (int) state;
+    }
+
+    /**
+     * Режим работы счетчика.
+     */
+    public enum Mode {
+        /**
+         * Фиксированное окно: счетчик целиком восстанавливается в начале каждого периода.
+         */
+        FIXED_WINDOW,
+        /**
+         * Корзина токенов: разрешения восстанавливаются равномерно, по одному за период / значение счетчика.
+         */
+        TOKEN_BUCKET
+    }
 }
@@ -0,0 +1,256 @@
+package ru.micode.limiter;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Блокирующая очередь с взвешенным справедливым обслуживанием полос приоритетов.
+ *
+ * <p>Задачи распределяются по полосам по приоритету. Полосы обслуживаются по кругу от старшей к младшей (deficit
+ * round robin): за круг полоса выдает не больше задач, чем ее вес. Поэтому поток задач старшей полосы не может
+ * бесконечно задерживать младшие. Внутри полосы задачи упорядочены по приоритету, равные - в порядке поступления.
+ *
+ * @param <E> тип задачи
+ */
+class WeightedFairQueue<E extends TaskWrapper<?, ?>> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    private final NavigableMap<Integer, Band<E>> bandsByPriority = new TreeMap<>();
+    private final List<Band<E>> bands = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int count;
+    private int current;
+
+    /**
+     * Конструктор.
+     *
+     * @param bandWeights веса полос по минимальному приоритету полосы. Задачи с приоритетом ниже минимального
+     *                    попадают в младшую полосу.
+     * @param comparator  порядок задач внутри полосы
+     */
+    WeightedFairQueue(Map<Integer, Integer> bandWeights, Comparator<? super E> comparator) {
+        if (bandWeights.isEmpty()) {
+            throw new IllegalArgumentException("at least one band is required");
+        }
+        new TreeMap<>(bandWeights).descendingMap().forEach((minPriority, weight) -> {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("band weight must be positive");
+            }
+            Band<E> band = new Band<>(weight, comparator);
+            bandsByPriority.put(minPriority, band);
+            bands.add(band);
+        });
+        bands.get(0).deficit = bands.get(0).weight;
+    }
+
+    private Band<E> band(E element) {
+        Map.Entry<Integer, Band<E>> entry = bandsByPriority.floorEntry(element.getPriority());
+        return entry == null
+            ? bandsByPriority.firstEntry().getValue()
+            : entry.getValue();
+    }
+
+    @Override
+    public boolean offer(E element) {
+        lock.lock();
+        try {
+            band(element).queue.offer(element);
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(E element, long timeout, TimeUnit unit) {
+        return offer(element);
+    }
+
+    @Override
+    public void put(E element) {
+        offer(element);
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll() {
+        lock.lock();
+        try {
+            return count == 0
+                ? null
+                : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            if (count == 0) {
+                return null;
+            }
+            // Полоса, которую выберет dequeue(): текущая, пока у нее остался ход, иначе следующая непустая
+            int index = current;
+            if (bands.get(index).deficit <= 0 || bands.get(index).queue.isEmpty()) {
+                do {
+                    index = (index + 1) % bands.size();
+                } while (bands.get(index).queue.isEmpty());
+            }
+            return bands.get(index).queue.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Выдает задачу очередной полосы. Вызывается под блокировкой при непустой очереди.
+     *
+     * @return задача
+     */
+    private E dequeue() {
+        while (true) {
+            Band<E> band = bands.get(current);
+            if (band.deficit > 0 && !band.queue.isEmpty()) {
+                band.deficit--;
+                count--;
+                return band.queue.poll();
+            }
+            if (band.queue.isEmpty()) {
+                band.deficit = 0;
+            }
+            current = (current + 1) % bands.size();
+            Band<E> next = bands.get(current);
+            next.deficit = next.weight;
+        }
+    }
+
+    @Override
+    public boolean remove(Object element) {
+        lock.lock();
+        try {
+            for (Band<E> band : bands) {
+                if (band.queue.remove(element)) {
+                    count--;
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> collection, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (count > 0 && drained < maxElements) {
+                collection.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Возвращает итератор по снимку очереди. Порядок обхода не совпадает с порядком выдачи.
+     *
+     * @return итератор
+     */
+    @Override
+    public Iterator<E> iterator() {
+        lock.lock();
+        try {
+            List<E> snapshot = new ArrayList<>(count);
+            bands.forEach(band -> snapshot.addAll(band.queue));
+            return snapshot.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Полоса приоритетов.
+     *
+     * @param <E> тип задачи
+     */
+    private static final class Band<E> {
+
+        private final int weight;
+        private final PriorityQueue<E> queue;
+        private int deficit;
+
+        Band(int weight, Comparator<? super E> comparator) {
+            this.weight = weight;
+            this.queue = new PriorityQueue<>(comparator);
+        }
+    }
+}
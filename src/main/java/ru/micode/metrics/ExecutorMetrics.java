@@ -0,0 +1,128 @@
+package ru.micode.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Метрики исполнителя задач: количество вызовов, ошибок и таймаутов, длительность вызова.
+ *
+ * <p>Выключенные метрики ({@link #DISABLED}) не делают ничего, их вызовы JIT-компилятор убирает целиком.
+ */
+public class ExecutorMetrics implements MetricSet {
+
+    /**
+     * Выключенные метрики.
+     */
+    public static final ExecutorMetrics DISABLED = new Disabled();
+    private final String name;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LatencyHistogram duration = new LatencyHistogram();
+
+    /**
+     * Конструктор.
+     *
+     * @param name название исполнителя
+     */
+    public ExecutorMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Проверяет, записываются ли метрики. Позволяет не замерять время, если метрики выключены.
+     *
+     * @return true, если метрики записываются
+     */
+    public boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Вызов завершен результатом.
+     *
+     * @param nanos длительность вызова
+     */
+    public void onCompleted(long nanos) {
+        completed.increment();
+        duration.record(nanos);
+    }
+
+    /**
+     * Вызов завершен ошибкой задачи.
+     *
+     * @param nanos длительность вызова
+     */
+    public void onFailed(long nanos) {
+        failed.increment();
+        duration.record(nanos);
+    }
+
+    /**
+     * Время ожидания вызова истекло.
+     *
+     * @param nanos длительность вызова
+     */
+    public void onTimedOut(long nanos) {
+        timedOut.increment();
+        duration.record(nanos);
+    }
+
+    @Override
+    public String getType() {
+        return "TaskExecutor";
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public LatencyHistogram getDuration() {
+        return duration;
+    }
+
+    @Override
+    public Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        snapshot.put("completed", completed.sum());
+        snapshot.put("failed", failed.sum());
+        snapshot.put("timedOut", timedOut.sum());
+        Histograms.put(snapshot, "duration", duration);
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * Выключенные метрики.
+     */
+    private static final class Disabled extends ExecutorMetrics {
+
+        Disabled() {
+            super("disabled");
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void onCompleted(long nanos) {
+        }
+
+        @Override
+        public void onFailed(long nanos) {
+        }
+
+        @Override
+        public void onTimedOut(long nanos) {
+        }
+
+        @Override
+        public Map<String, Number> snapshot() {
+            return Collections.emptyMap();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package ru.micode.metrics;
+
+import java.util.Map;
+
+/**
+ * Представление гистограммы в снимке метрик.
+ */
+final class Histograms {
+
+    private Histograms() {
+    }
+
+    /**
+     * Добавляет в снимок количество, среднее, медиану, 99-й перцентиль и максимум гистограммы.
+     *
+     * @param snapshot  снимок метрик
+     * @param prefix    префикс названий
+     * @param histogram гистограмма
+     */
+    static void put(Map<String, Number> snapshot, String prefix, LatencyHistogram histogram) {
+        snapshot.put(prefix + ".count", histogram.getCount());
+        snapshot.put(prefix + ".mean", histogram.getMean());
+        snapshot.put(prefix + ".p50", histogram.percentile(0.5));
+        snapshot.put(prefix + ".p99", histogram.percentile(0.99));
+        snapshot.put(prefix + ".max", histogram.getMax());
+    }
+}
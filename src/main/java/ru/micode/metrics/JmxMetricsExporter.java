@@ -0,0 +1,157 @@
+package ru.micode.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Экспортер метрик в JMX. Каждый набор метрик публикуется как MBean
+ * {@code ru.micode.mutaba:type=<тип>,name=<название>} с атрибутами только для чтения.
+ *
+ * <p>Название набора обязательно. Набор с уже занятым именем не публикуется: опубликованные метрики другого
+ * компонента не заменяются, а снятие регистрации затрагивает только MBean, опубликованный этим экспортером для того же
+ * набора.
+ */
+public class JmxMetricsExporter implements MetricsExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(JmxMetricsExporter.class);
+    private static final String DOMAIN = "ru.micode.mutaba";
+    private final MBeanServer server;
+    private final Map<ObjectName, MetricSet> registered = new ConcurrentHashMap<>();
+
+    /**
+     * Конструктор с платформенным MBean-сервером.
+     */
+    public JmxMetricsExporter() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * Конструктор.
+     *
+     * @param server MBean-сервер
+     */
+    public JmxMetricsExporter(MBeanServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Публикует набор метрик. Если имя уже занято, набор не публикуется, а в лог пишется предупреждение.
+     *
+     * @param metricSet набор метрик
+     * @throws IllegalArgumentException если название набора не задано
+     */
+    @Override
+    public void register(MetricSet metricSet) {
+        if (metricSet.getName() == null || metricSet.getName().isBlank()) {
+            throw new IllegalArgumentException("metrics name must not be blank");
+        }
+        try {
+            ObjectName name = objectName(metricSet);
+            server.registerMBean(new MetricSetMBean(metricSet), name);
+            registered.put(name, metricSet);
+        } catch (InstanceAlreadyExistsException e) {
+            logger.warn("metrics {} are already registered, skip registration", metricSet.getName());
+        } catch (JMException e) {
+            logger.warn("unable to register metrics {}: {}", metricSet.getName(), e.toString());
+        }
+    }
+
+    @Override
+    public void unregister(MetricSet metricSet) {
+        try {
+            ObjectName name = objectName(metricSet);
+            if (registered.remove(name, metricSet)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.warn("unable to unregister metrics {}: {}", metricSet.getName(), e.toString());
+        }
+    }
+
+    /**
+     * Возвращает имя MBean набора метрик.
+     *
+     * @param metricSet набор метрик
+     * @return имя MBean
+     * @throws MalformedObjectNameException если тип набора содержит недопустимые символы
+     */
+    public static ObjectName objectName(MetricSet metricSet) throws MalformedObjectNameException {
+        return new ObjectName(DOMAIN + ":type=" + metricSet.getType() + ",name="
+            + ObjectName.quote(metricSet.getName()));
+    }
+
+    /**
+     * MBean, читающий значения набора метрик при каждом обращении.
+     */
+    private static final class MetricSetMBean implements DynamicMBean {
+
+        private final MetricSet metricSet;
+
+        MetricSetMBean(MetricSet metricSet) {
+            this.metricSet = metricSet;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = metricSet.snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("metrics are read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> snapshot = metricSet.snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = snapshot.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("no operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            metricSet.snapshot().forEach((key, value) -> attributes.add(new MBeanAttributeInfo(key,
+                value.getClass().getName(), key, true, false, false)));
+            return new MBeanInfo(metricSet.getClass().getName(), metricSet.getType() + " metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ru.micode.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма длительностей с логарифмически-линейными корзинами (как в HdrHistogram).
+ *
+ * <p>Каждая степень двойки делится на {@value #SUB_BUCKETS} равных корзин, поэтому относительная погрешность
+ * значения не превышает 1/{@value #SUB_BUCKETS}. Запись не блокирует и не создает объектов: один инкремент в
+ * {@link AtomicLongArray}. Значения больше {@link #MAX_VALUE} (около 9 часов в наносекундах) учитываются в
+ * последней корзине.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Наибольшее различимое значение.
+     */
+    public static final long MAX_VALUE = (1L << 45) - 1;
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_BIT = 63 - Long.numberOfLeadingZeros(MAX_VALUE);
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_BIT - SUB_BITS + 2) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Записывает значение.
+     *
+     * @param value значение, обычно в наносекундах
+     */
+    public void record(long value) {
+        long bounded = Math.min(Math.max(value, 0), MAX_VALUE);
+        counts.incrementAndGet(index(bounded));
+        count.increment();
+        sum.add(bounded);
+        max.accumulate(bounded);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Возвращает значение, не превышаемое заданной долей записей (с точностью до корзины).
+     *
+     * @param quantile доля записей от 0 до 1, например 0.99
+     * @return значение перцентиля, 0 - если записей нет
+     */
+    public long percentile(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Возвращает среднее значение.
+     *
+     * @return среднее значение, 0 - если записей нет
+     */
+    public double getMean() {
+        long records = count.sum();
+        return records == 0
+            ? 0
+            : (double) sum.sum() / records;
+    }
+}
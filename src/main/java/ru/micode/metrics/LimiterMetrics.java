@@ -0,0 +1,253 @@
+package ru.micode.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Метрики ограничителя выполнения задач: счетчики задач, время ожидания в очереди и время выполнения, общие и по
+ * приоритетам, а также показатели (глубина очереди, доступные разрешения), читаемые при снятии значений.
+ *
+ * <p>Счетчики - {@link LongAdder}, гистограммы - {@link LatencyHistogram}: запись не блокирует потоки очереди.
+ * Выключенные метрики ({@link #DISABLED}) не делают ничего, их вызовы JIT-компилятор убирает целиком.
+ */
+public class LimiterMetrics implements MetricSet {
+
+    /**
+     * Выключенные метрики.
+     */
+    public static final LimiterMetrics DISABLED = new Disabled();
+    private final String name;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram execution = new LatencyHistogram();
+    private final ConcurrentHashMap<Integer, PriorityMetrics> priorities = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    /**
+     * Конструктор.
+     *
+     * @param name название ограничителя
+     */
+    public LimiterMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Проверяет, записываются ли метрики. Позволяет не замерять время, если метрики выключены.
+     *
+     * @return true, если метрики записываются
+     */
+    public boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Добавляет показатель, значение которого читается при снятии метрик.
+     *
+     * @param key      название показателя
+     * @param supplier источник значения
+     */
+    public void gauge(String key, LongSupplier supplier) {
+        gauges.put(key, supplier);
+    }
+
+    /**
+     * Задача принята в очередь.
+     *
+     * @param priority приоритет задачи
+     */
+    public void onSubmitted(int priority) {
+        submitted.increment();
+        priority(priority).submitted.increment();
+    }
+
+    /**
+     * Задача отклонена из-за заполнения очереди.
+     *
+     * @param priority приоритет задачи
+     */
+    public void onRejected(int priority) {
+        rejected.increment();
+        priority(priority).rejected.increment();
+    }
+
+    /**
+     * Задача отложена до появления разрешения.
+     *
+     * @param priority приоритет задачи
+     */
+    public void onThrottled(int priority) {
+        throttled.increment();
+        priority(priority).throttled.increment();
+    }
+
+    /**
+     * Задача с приоритетом ниже safetyPriority отклонена из-за исчерпания лимита.
+     *
+     * @param priority приоритет задачи
+     */
+    public void onShed(int priority) {
+        shed.increment();
+        priority(priority).shed.increment();
+    }
+
+    /**
+     * Отмененная задача пропущена очередью.
+     */
+    public void onCancelled() {
+        cancelled.increment();
+    }
+
+    /**
+     * Попытка задачи завершилась исключением, задача будет повторена.
+     */
+    public void onRetried() {
+        retried.increment();
+    }
+
+    /**
+     * Задача выполнена.
+     *
+     * @param priority       приоритет задачи
+     * @param waitNanos      время от постановки в очередь до запуска
+     * @param executionNanos время выполнения
+     * @param failure        true, если задача завершилась исключением
+     */
+    public void onCompleted(int priority, long waitNanos, long executionNanos, boolean failure) {
+        if (failure) {
+            failed.increment();
+        } else {
+            completed.increment();
+        }
+        queueWait.record(waitNanos);
+        execution.record(executionNanos);
+        priority(priority).queueWait.record(waitNanos);
+    }
+
+    private PriorityMetrics priority(int priority) {
+        PriorityMetrics metrics = priorities.get(priority);
+        return metrics == null
+            ? priorities.computeIfAbsent(priority, key -> new PriorityMetrics())
+            : metrics;
+    }
+
+    @Override
+    public String getType() {
+        return "TaskLimiter";
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    public LatencyHistogram getExecution() {
+        return execution;
+    }
+
+    @Override
+    public Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        snapshot.put("submitted", submitted.sum());
+        snapshot.put("rejected", rejected.sum());
+        snapshot.put("throttled", throttled.sum());
+        snapshot.put("shed", shed.sum());
+        snapshot.put("cancelled", cancelled.sum());
+        snapshot.put("retried", retried.sum());
+        snapshot.put("completed", completed.sum());
+        snapshot.put("failed", failed.sum());
+        gauges.forEach((key, supplier) -> snapshot.put(key, supplier.getAsLong()));
+        Histograms.put(snapshot, "queueWait", queueWait);
+        Histograms.put(snapshot, "execution", execution);
+        new TreeMap<>(priorities).forEach((priority, metrics) -> {
+            String prefix = "priority." + priority + ".";
+            snapshot.put(prefix + "submitted", metrics.submitted.sum());
+            snapshot.put(prefix + "rejected", metrics.rejected.sum());
+            snapshot.put(prefix + "throttled", metrics.throttled.sum());
+            snapshot.put(prefix + "shed", metrics.shed.sum());
+            Histograms.put(snapshot, prefix + "queueWait", metrics.queueWait);
+        });
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * Метрики одного приоритета.
+     */
+    private static final class PriorityMetrics {
+
+        private final LongAdder submitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder throttled = new LongAdder();
+        private final LongAdder shed = new LongAdder();
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+    }
+
+    /**
+     * Выключенные метрики.
+     */
+    private static final class Disabled extends LimiterMetrics {
+
+        Disabled() {
+            super("disabled");
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void gauge(String key, LongSupplier supplier) {
+        }
+
+        @Override
+        public void onSubmitted(int priority) {
+        }
+
+        @Override
+        public void onRejected(int priority) {
+        }
+
+        @Override
+        public void onThrottled(int priority) {
+        }
+
+        @Override
+        public void onShed(int priority) {
+        }
+
+        @Override
+        public void onCancelled() {
+        }
+
+        @Override
+        public void onRetried() {
+        }
+
+        @Override
+        public void onCompleted(int priority, long waitNanos, long executionNanos, boolean failure) {
+        }
+
+        @Override
+        public Map<String, Number> snapshot() {
+            return Collections.emptyMap();
+        }
+    }
+}
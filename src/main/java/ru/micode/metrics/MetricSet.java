@@ -0,0 +1,30 @@
+package ru.micode.metrics;
+
+import java.util.Map;
+
+/**
+ * Набор метрик одного компонента (ограничителя, исполнителя), передаваемый экспортерам.
+ */
+public interface MetricSet {
+
+    /**
+     * Возвращает тип компонента, например {@code TaskLimiter}.
+     *
+     * @return тип компонента
+     */
+    String getType();
+
+    /**
+     * Возвращает название экземпляра компонента.
+     *
+     * @return название
+     */
+    String getName();
+
+    /**
+     * Возвращает текущие значения метрик.
+     *
+     * @return значения по названию метрики, порядок названий стабилен
+     */
+    Map<String, Number> snapshot();
+}
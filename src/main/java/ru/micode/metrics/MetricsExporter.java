@@ -0,0 +1,24 @@
+package ru.micode.metrics;
+
+/**
+ * Экспортер метрик во внешнюю систему мониторинга.
+ *
+ * <p>Компонент регистрирует свой набор метрик при создании и снимает регистрацию при остановке. Экспортер сам
+ * решает, когда читать значения {@link MetricSet#snapshot()}: запись метрик компонентом от экспортера не зависит.
+ */
+public interface MetricsExporter {
+
+    /**
+     * Регистрирует набор метрик.
+     *
+     * @param metricSet набор метрик
+     */
+    void register(MetricSet metricSet);
+
+    /**
+     * Снимает регистрацию набора метрик.
+     *
+     * @param metricSet набор метрик
+     */
+    void unregister(MetricSet metricSet);
+}
@@ -1,11 +1,19 @@
 package ru.micode.executor;
 
 import java.net.http.HttpTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import ru.micode.metrics.ExecutorMetrics;
+
 /**
  * Тест обработчика задач.
  */
@@ -46,4 +54,82 @@ class TaskExecutorTest {
             System.out.println("Exception expected" + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Тест отмены задачи с истекшим временем ожидания: поток пула прерывается и освобождается.
+     */
+    @Test
+    void testTimeoutInterruptsTask() throws TaskExecutor.TaskException {
+        AtomicBoolean interrupted = new AtomicBoolean();
+        try (TaskExecutor executor = TaskExecutor.fixedPool(1)) {
+            try {
+                executor.invoke(100, TimeUnit.MILLISECONDS, () -> {
+                    try {
+                        TimeUnit.SECONDS.sleep(10);
+                    } catch (InterruptedException e) {
+                        interrupted.set(true);
+                        throw e;
+                    }
+                    return false;
+                });
+                Assertions.fail("Exception expected");
+            } catch (TaskExecutor.TaskException e) {
+                Assertions.assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            // Единственный поток пула должен быть свободен для следующей задачи
+            Assertions.assertTrue(executor.invoke(1, TimeUnit.SECONDS, () -> true));
+            Assertions.assertTrue(interrupted.get());
+        }
+    }
+
+    /**
+     * Тест неблокирующего вызова с таймаутом на колесе таймеров.
+     */
+    @Test
+    void testCallAsync() throws Exception {
+        CompletableFuture<Boolean> success = TaskExecutor.callAsync(1, TimeUnit.SECONDS, () -> {
+            TimeUnit.MILLISECONDS.sleep(100);
+            return true;
+        });
+        CompletableFuture<Boolean> timeout = TaskExecutor.callAsync(100, TimeUnit.MILLISECONDS, () -> {
+            TimeUnit.SECONDS.sleep(10);
+            return true;
+        });
+        CompletableFuture<Boolean> error = TaskExecutor.callAsync(1, TimeUnit.SECONDS, () -> {
+            throw new HttpTimeoutException("http error");
+        });
+        Assertions.assertTrue(success.get(2, TimeUnit.SECONDS));
+        ExecutionException timeoutError =
+            Assertions.assertThrows(ExecutionException.class, () -> timeout.get(2, TimeUnit.SECONDS));
+        Assertions.assertTrue(timeoutError.getCause().getCause() instanceof TimeoutException);
+        ExecutionException httpError =
+            Assertions.assertThrows(ExecutionException.class, () -> error.get(2, TimeUnit.SECONDS));
+        Assertions.assertTrue(httpError.getCause().getCause() instanceof HttpTimeoutException);
+    }
+
+    /**
+     * Тест метрик вызовов исполнителя.
+     */
+    @Test
+    void testMetrics() throws Exception {
+        ExecutorMetrics metrics = new ExecutorMetrics("test");
+        try (TaskExecutor executor = new TaskExecutor(Executors.newCachedThreadPool(),
+            new HashedWheelTimer("metrics-timer", 10, TimeUnit.MILLISECONDS, 64), metrics)) {
+            Assertions.assertTrue(executor.invoke(1, TimeUnit.SECONDS, () -> true));
+            Assertions.assertThrows(TaskExecutor.TaskException.class, () -> executor.invoke(50, TimeUnit.MILLISECONDS,
+                () -> {
+                    TimeUnit.SECONDS.sleep(10);
+                    return true;
+                }));
+            CompletableFuture<Boolean> error = executor.invokeAsync(1, TimeUnit.SECONDS, () -> {
+                throw new HttpTimeoutException("http error");
+            });
+            Assertions.assertThrows(ExecutionException.class, () -> error.get(2, TimeUnit.SECONDS));
+        }
+        Map<String, Number> snapshot = metrics.snapshot();
+        Assertions.assertEquals(1L, snapshot.get("completed"));
+        Assertions.assertEquals(1L, snapshot.get("timedOut"));
+        Assertions.assertEquals(1L, snapshot.get("failed"));
+        Assertions.assertEquals(3L, snapshot.get("duration.count"));
+    }
+}
@@ -2,9 +2,8 @@ package ru.micode.limiter;
 
 import java.util.Optional;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -14,8 +13,6 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class MainExample {
 
     public static void main(String[] args) throws InterruptedException {
-        // Пулл потоков
-        final ExecutorService pool = Executors.newCachedThreadPool();
         // Счетчик успешно выполненных задач.
         AtomicInteger success = new AtomicInteger();
         final Random random = new Random();
@@ -23,19 +20,18 @@ public class MainExample {
         // Приоритет сохраняемой операции 3 (приортиетты меньше 3 не гарантируют выполнение задачи)
         final TaskLimiter<String, Integer> taskLimiter = new TaskLimiter<>(3, "cals-len-string", 3, 100, 3);
         String[] tasks = new String[] {"aa", "bbbbbb", "ccccccc", "eeeeee", "dddd", "f", "tt", "qqqq", "www"};
-        // Создаем поток задач
+        // Создаем поток задач, результат обрабатывается без ожидания в отдельном потоке
         CountDownLatch latch = new CountDownLatch(100);
         for (int i = 0; i < 100; i++) {
-            pool.execute(() -> {
-                final String str = tasks[random.nextInt(tasks.length)];
-                final int priority = random.nextInt(5);
-                final Optional<Integer> result = taskLimiter.createTask(str, priority, val -> {
-                    TimeUnit.MILLISECONDS.sleep(random.nextInt(50));
-                    return val.length();
-                }).waitFor(20, TimeUnit.SECONDS);
-                if (result.isPresent()) {
+            final String str = tasks[random.nextInt(tasks.length)];
+            final int priority = random.nextInt(5);
+            taskLimiter.createTask(str, priority, val -> {
+                TimeUnit.MILLISECONDS.sleep(random.nextInt(50));
+                return val.length();
+            }).whenComplete((result, throwable) -> {
+                if (throwable == null) {
                     success.incrementAndGet();
-                    System.out.printf("len: %s = %s %n", str, result.get());
+                    System.out.printf("len: %s = %s %n", str, result);
                 } else {
                     System.err.printf("len: %s = ignore priority: %s %n", str, priority);
                 }
@@ -43,8 +39,7 @@ public class MainExample {
             });
         }
         // Ожидаем обработки всех заданий
-        latch.await();
-        pool.shutdown();
+        latch.await(20, TimeUnit.SECONDS);
         System.out.printf("%s/100%n", success.get());
     }
 
@@ -57,6 +52,9 @@ public class MainExample {
         }
 
         Optional<Integer> len = taskLimiter.createTask("string", 5, String::length).waitFor(10, TimeUnit.SECONDS);
+
+        CompletableFuture<Integer> future = taskLimiter.createTask("string", 5, String::length).toCompletableFuture();
+        future.thenAccept(System.out::println);
     }
 
 }
@@ -1,16 +1,44 @@
 package ru.micode.limiter;
 
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SubmissionPublisher;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.commons.lang3.StringUtils;
 import org.junit.jupiter.api.Test;
 
+import ru.micode.metrics.JmxMetricsExporter;
+import ru.micode.metrics.LatencyHistogram;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * Тестирование ограничителя.
@@ -95,4 +123,1119 @@ class TaskLimiterTest {
         }
         countDownLatch.await();
     }
-}
\ No newline at end of file
+
+    /**
+     * Тестирование режимов счетчика: фиксированное окно и корзина токенов.
+     *
+     * @throws InterruptedException если что-то пошло не так.
+     */
+    @Test
+    public void testTimeLimitCounterModes() throws InterruptedException {
+        TimeLimitCounter window = new TimeLimitCounter(2, 200, TimeUnit.MILLISECONDS);
+        assertEquals(1, window.decrementAndGet());
+        assertEquals(0, window.decrementAndGet());
+        assertEquals(-1, window.decrementAndGet());
+        TimeLimitCounter bucket =
+            new TimeLimitCounter(2, 200, TimeUnit.MILLISECONDS, TimeLimitCounter.Mode.TOKEN_BUCKET);
+        assertEquals(1, bucket.decrementAndGet());
+        assertEquals(0, bucket.decrementAndGet());
+        assertEquals(-1, bucket.decrementAndGet());
+        assertEquals(0, bucket.get());
+        // Корзина пополняется по одному токену каждые 100 мс, окно - целиком через 200 мс
+        TimeUnit.MILLISECONDS.sleep(250);
+        assertEquals(2, window.get());
+        assertEquals(2, bucket.get());
+        assertEquals(1, bucket.decrementAndGet());
+    }
+
+    /**
+     * Тестирование скользящего окна: лимит действует в любом окне, а не только в выровненном.
+     *
+     * @throws InterruptedException если что-то пошло не так.
+     */
+    @Test
+    public void testSlidingWindowCounter() throws InterruptedException {
+        SlidingWindowCounter counter = new SlidingWindowCounter(4, 400, TimeUnit.MILLISECONDS, 4);
+        assertTrue(counter.tryAcquire());
+        assertTrue(counter.tryAcquire());
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertTrue(counter.tryAcquire());
+        assertTrue(counter.tryAcquire());
+        assertFalse(counter.tryAcquire());
+        assertEquals(0, counter.available());
+        // Первые два разрешения вышли из окна, последние два - еще в нем
+        TimeUnit.MILLISECONDS.sleep(250);
+        assertEquals(2, counter.available());
+        assertTrue(counter.tryAcquire());
+        assertTrue(counter.tryAcquire());
+        assertFalse(counter.tryAcquire());
+        counter.release();
+        assertTrue(counter.tryAcquire());
+    }
+
+    /**
+     * Тестирование ограничителя со стратегией скользящего окна.
+     */
+    @Test
+    public void testSlidingWindowBalancer() {
+        TaskLimiter<String, Integer> taskLimiter =
+            new TaskLimiter<>(1, "Sliding", 10, 50, 5, RateLimiter.Strategy.SLIDING_WINDOW);
+        Optional<Integer> result = taskLimiter.createTask("task", 1, String::length).waitFor(1, TimeUnit.SECONDS);
+        assertEquals(4, (int) result.orElseThrow(RuntimeException::new));
+        taskLimiter.shutdownAll();
+    }
+
+    /**
+     * Тестирование отложенных задач: при исчерпании лимита задачи возвращаются в очередь к моменту появления
+     * разрешения.
+     */
+    @Test
+    public void testThrottledTasksDeferred() {
+        TaskLimiter<String, Integer> taskLimiter = new TaskLimiter<>(1, "Deferred", 5, 100, 0);
+        List<TaskWrapper<String, Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            tasks.add(taskLimiter.createTask("task", 1, String::length));
+        }
+        long start = System.nanoTime();
+        tasks.forEach(task -> assertEquals(4, (int) task.waitForThrow(5, TimeUnit.SECONDS)));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // 12 задач при 5 в секунду укладываются в три окна
+        assertTrue(elapsed < 3000, "elapsed " + elapsed);
+        taskLimiter.shutdownAll();
+    }
+
+    /**
+     * Тестирование нескольких окон: разрешение расходуется, только если его выдали все окна.
+     */
+    @Test
+    public void testMultiWindowLimits() {
+        TimeLimitCounter second = new TimeLimitCounter(2, 1, TimeUnit.SECONDS);
+        TimeLimitCounter minute = new TimeLimitCounter(1, 1, TimeUnit.MINUTES);
+        CompositeRateLimiter composite = new CompositeRateLimiter("composite", List.of(second, minute));
+        assertTrue(composite.tryAcquire());
+        assertEquals(minute, composite.tryAcquireAll());
+        // Секундное разрешение возвращено после отказа минутного окна
+        assertEquals(1, second.available());
+
+        TaskLimiter<String, Integer> taskLimiter = TaskLimiter.<String, Integer>builder()
+            .name("Windows")
+            .safetyPriority(5)
+            .limit(3, 1, TimeUnit.HOURS)
+            .limit(10, 1, TimeUnit.SECONDS)
+            .limit(100, 1, TimeUnit.DAYS)
+            .build();
+        List<TaskWrapper<String, Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            tasks.add(taskLimiter.createTask("task", 1, String::length));
+        }
+        long success = tasks.stream()
+            .filter(task -> task.waitFor(1, TimeUnit.SECONDS).isPresent())
+            .count();
+        assertEquals(3, success);
+        taskLimiter.shutdownAll();
+    }
+
+    /**
+     * Тестирование лимитов по ключам: исчерпание квоты одного ключа не задерживает задачи другого, ключи без задач
+     * удаляются после простоя.
+     *
+     * @throws InterruptedException если что-то пошло не так.
+     */
+    @Test
+    public void testKeyedLimits() throws InterruptedException {
+        KeyedTaskLimiter<String, String, Integer> keyedLimiter = KeyedTaskLimiter.<String, String, Integer>builder()
+            .name("Keyed")
+            .safetyPriority(5)
+            .limit(2, 300, TimeUnit.MILLISECONDS)
+            .idleTimeout(300, TimeUnit.MILLISECONDS)
+            .build();
+        List<TaskWrapper<String, Integer>> first = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            first.add(keyedLimiter.createTask("first", "task", 1, String::length));
+        }
+        TaskWrapper<String, Integer> second = keyedLimiter.createTask("second", "task", 1, String::length);
+        assertEquals(4, (int) second.waitForThrow(1, TimeUnit.SECONDS));
+        long success = first.stream()
+            .filter(task -> task.waitFor(1, TimeUnit.SECONDS).isPresent())
+            .count();
+        assertEquals(2, success);
+        assertEquals(2, keyedLimiter.size());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (keyedLimiter.size() > 0 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        assertEquals(0, keyedLimiter.size());
+        assertThrows(NullPointerException.class, () -> keyedLimiter.createTask(null, "task", 1, String::length));
+        // Стоимость задачи расходуется из окон ключа, а задача дороже окна ключа отклоняется
+        TaskWrapper<String, Integer> weighted =
+            keyedLimiter.createTask("third", "task", 1, TaskOptions.builder().cost(2).build(), String::length);
+        assertEquals(4, (int) weighted.waitForThrow(1, TimeUnit.SECONDS));
+        assertTrue(keyedLimiter.createTask("fourth", "task", 1, TaskOptions.builder().cost(3).build(), String::length)
+            .getFailure() instanceof IllegalArgumentException);
+        assertTrue(keyedLimiter.drain(1, TimeUnit.SECONDS));
+        keyedLimiter.close();
+        assertEquals(0, keyedLimiter.size());
+        assertTrue(keyedLimiter.createTask("first", "task", 1, String::length).getFailure()
+            instanceof RejectedExecutionException);
+        // Ключ, удаленный до пополнения окна, получил бы полную квоту заново
+        assertThrows(IllegalArgumentException.class, () -> KeyedTaskLimiter.<String, String, Integer>builder()
+            .limit(2, 1, TimeUnit.HOURS)
+            .idleTimeout(10, TimeUnit.MINUTES)
+            .build());
+    }
+
+    /**
+     * Тестирование пакетной отправки и пакетной обработки задач.
+     *
+     * @throws InterruptedException если что-то пошло не так.
+     */
+    @Test
+    public void testBatchTasks() throws InterruptedException {
+        TaskLimiter<String, Integer> taskLimiter = TaskLimiter.<String, Integer>builder()
+            .name("Batch")
+            .limit(4, 1, TimeUnit.HOURS)
+            .build();
+        List<TaskWrapper<String, Integer>> bulk = taskLimiter.createTasks(List.of("a", "bb"), 1, String::length);
+        assertEquals(2, (int) bulk.get(1).waitForThrow(1, TimeUnit.SECONDS));
+
+        List<Integer> batchSizes = new ArrayList<>();
+        TaskBatcher<String, Integer> batcher = taskLimiter.batcher(tasks -> {
+            batchSizes.add(tasks.size());
+            return tasks.stream().collect(Collectors.toMap(Function.identity(), String::length));
+        })
+            .maxBatchSize(3)
+            .linger(50, TimeUnit.MILLISECONDS)
+            .build();
+        List<TaskWrapper<String, Integer>> tasks = batcher.createTasks(List.of("a", "bb", "ccc", "dddd"), 1);
+        assertEquals(4, (int) tasks.get(3).waitForThrow(1, TimeUnit.SECONDS));
+        assertEquals(1, (int) tasks.get(0).waitForThrow(1, TimeUnit.SECONDS));
+        // Два пакета (3 задачи и 1 задача по истечении времени накопления) расходуют по одному разрешению
+        assertEquals(List.of(3, 1), batchSizes);
+        taskLimiter.shutdownAll();
+        assertTrue(batcher.createTask("eeeee", 1).getFailure() instanceof RejectedExecutionException);
+
+        // Ожидание очереди ставит накопленный пакет в очередь, остановка отменяет его
+        TaskLimiter<String, Integer> lingering = TaskLimiter.<String, Integer>builder()
+            .name("Batch")
+            .limit(4, 1, TimeUnit.HOURS)
+            .build();
+        TaskBatcher<String, Integer> slow = lingering.batcher(batch -> batch.stream()
+            .collect(Collectors.toMap(Function.identity(), String::length)))
+            .linger(1, TimeUnit.HOURS)
+            .build();
+        TaskWrapper<String, Integer> drained = slow.createTask("ff", 1);
+        assertTrue(lingering.drain(1, TimeUnit.SECONDS));
+        assertEquals(2, (int) drained.waitForThrow(1, TimeUnit.SECONDS));
+        lingering.shutdownAll();
+
+        TaskLimiter<String, Integer> stopped = TaskLimiter.<String, Integer>builder()
+            .name("Batch")
+            .limit(4, 1, TimeUnit.HOURS)
+            .build();
+        TaskWrapper<String, Integer> cancelled = stopped.batcher(batch -> batch.stream()
+            .collect(Collectors.toMap(Function.identity(), String::length)))
+            .linger(1, TimeUnit.HOURS)
+            .build()
+            .createTask("ggg", 1);
+        stopped.close();
+        assertTrue(cancelled.getFailure() instanceof CancellationException);
+    }
+
+    /**
+     * Тестирование асинхронного получения результата и отмены задачи в очереди.
+     *
+     * @throws Exception если что-то пошло не так.
+     */
+    @Test
+    public void testAsyncResult() throws Exception {
+        TaskLimiter<String, Integer> taskLimiter = TaskLimiter.<String, Integer>builder()
+            .name("Async")
+            .limit(1, 1, TimeUnit.HOURS)
+            .build();
+        CompletableFuture<Integer> first = taskLimiter.createTask("task", 5, String::length).toCompletableFuture();
+        assertEquals(4, (int) first.thenApply(len -> len * 2).get(1, TimeUnit.SECONDS) / 2);
+        // Лимит исчерпан, задача ожидает разрешения и отменяется через возвращенный Future
+        TaskWrapper<String, Integer> second = taskLimiter.createTask("task", 5, String::length);
+        CompletableFuture<Integer> future = second.toCompletableFuture();
+        assertTrue(future.cancel(false));
+        assertTrue(second.isCancelled());
+        assertFalse(second.waitFor(100, TimeUnit.MILLISECONDS).isPresent());
+        assertFalse(second.cancel());
+        taskLimiter.shutdownAll();
+    }
+
+    /**
+     * Тестирование емкости очереди и политик переполнения.
+     *
+     * @throws InterruptedException если что-то пошло не так.
+     */
+    @Test
+    public void testOverflowPolicies() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        TaskLimiter.TaskProcess<String, Integer> blocking = val -> {
+            release.await();
+            return val.length();
+        };
+        TaskLimiter<String, Integer> rejecting = TaskLimiter.<String, Integer>builder()
+            .name("Reject")
+            .capacity(2)
+            .build();
+        final TaskWrapper<String, Integer> running = rejecting.createTask("task", 5, blocking);
+        TaskWrapper<String, Integer> queued = rejecting.createTask("task", 5, blocking);
+        TaskWrapper<String, Integer> rejected = rejecting.createTask("task", 5, blocking);
+        assertTrue(rejected.toCompletableFuture().isCompletedExceptionally());
+        assertFalse(queued.isDone());
+
+        TaskLimiter<String, Integer> dropping = TaskLimiter.<String, Integer>builder()
+            .name("Drop")
+            .capacity(2)
+            .overflowPolicy(TaskLimiter.OverflowPolicy.DROP_LOWEST_PRIORITY)
+            .build();
+        dropping.createTask("task", 5, blocking);
+        TaskWrapper<String, Integer> low = dropping.createTask("task", 1, blocking);
+        TaskWrapper<String, Integer> high = dropping.createTask("task", 7, blocking);
+        assertTrue(low.toCompletableFuture().isCompletedExceptionally());
+        assertFalse(high.isDone());
+        // Место вытесненной задачи передано новой, а не возвращено в общий счетчик
+        assertEquals(0, dropping.remainingCapacity());
+
+        TaskLimiter<String, Integer> blockingLimiter = TaskLimiter.<String, Integer>builder()
+            .name("Block")
+            .capacity(1)
+            .blockTimeout(50, TimeUnit.MILLISECONDS)
+            .build();
+        blockingLimiter.createTask("task", 5, blocking);
+        long start = System.nanoTime();
+        TaskWrapper<String, Integer> timedOut = blockingLimiter.createTask("task", 5, blocking);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(timedOut.toCompletableFuture().isCompletedExceptionally());
+
+        release.countDown();
+        assertEquals(4, (int) running.waitForThrow(1, TimeUnit.SECONDS));
+        assertEquals(4, (int) queued.waitForThrow(1, TimeUnit.SECONDS));
+        assertEquals(4, (int) high.waitForThrow(1, TimeUnit.SECONDS));
+        // Места освобождены завершенными задачами
+        assertEquals(4, (int) rejecting.createTask("task", 5, String::length).waitForThrow(1, TimeUnit.SECONDS));
+        rejecting.shutdownAll();
+        dropping.shutdownAll();
+        blockingLimiter.shutdownAll();
+    }
+
+    /**
+     * Тестирование политик порядка выдачи: FIFO при равных приоритетах, старение и справедливое обслуживание полос.
+     *
+     * @throws InterruptedException если что-то пошло не так.
+     */
+    @Test
+    public void testSchedulingPolicies() throws InterruptedException {
+        assertEquals(List.of("a", "b", "c"), executionOrder(SchedulingPolicy.priority(), List.of("a", "b", "c"),
+            List.of(1, 1, 1), 0));
+        // Задача с приоритетом 1 прождала больше двух интервалов старения и обгоняет задачу с приоритетом 3
+        assertEquals(List.of("old", "new"), executionOrder(SchedulingPolicy.aging(10, TimeUnit.MILLISECONDS),
+            List.of("old", "new"), List.of(1, 3), 50));
+        // Полосы с равными весами чередуются, первый ход старшей полосы израсходован задачей-затвором
+        assertEquals(List.of("l1", "h1", "l2", "h2", "l3", "h3"),
+            executionOrder(SchedulingPolicy.priority().weightedFair(Map.of(0, 1, 10, 1)),
+                List.of("h1", "h2", "h3", "l1", "l2", "l3"), List.of(10, 10, 10, 1, 1, 1), 0));
+    }
+
+    /**
+     * Тестирование очереди со справедливым обслуживанием полос: за круг полосы выдают задачи пропорционально весам,
+     * опустевшая полоса пропускается, внутри полосы сохраняется порядок поступления.
+     */
+    @Test
+    public void testWeightedFairQueue() {
+        BlockingQueue<TaskWrapper<String, Integer>> queue = SchedulingPolicy.priority()
+            .weightedFair(Map.of(0, 1, 5, 2, 10, 3))
+            .createQueue();
+        final String[] names = {"h", "m", "l"};
+        final int[] priorities = {10, 5, -3};
+        long sequence = 0;
+        for (int i = 0; i < 12; i++) {
+            for (int band = 0; band < names.length; band++) {
+                TaskWrapper<String, Integer> taskWrapper =
+                    new TaskWrapper<>(names[band] + i, priorities[band], null, new CompletableFuture<>());
+                taskWrapper.enqueued(++sequence, System.nanoTime());
+                queue.offer(taskWrapper);
+            }
+        }
+        assertEquals(36, queue.size());
+        StringBuilder bands = new StringBuilder();
+        List<String> high = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            TaskWrapper<String, Integer> next = queue.peek();
+            assertSame(next, queue.poll());
+            bands.append(next.getTask().charAt(0));
+            if (next.getTask().startsWith("h")) {
+                high.add(next.getTask());
+            }
+        }
+        // Веса 3:2:1, после двух полных кругов полоса h пустеет, задачи ниже младшей полосы попадают в нее
+        assertEquals("hhhmml".repeat(4) + "mml".repeat(2) + "l".repeat(6), bands.toString());
+        assertEquals(IntStream.range(0, 12).mapToObj(i -> "h" + i).collect(Collectors.toList()), high);
+    }
+
+    private List<String> executionOrder(SchedulingPolicy policy, List<String> tasks, List<Integer> priorities,
+                                        long pauseMillis) throws InterruptedException {
+        TaskLimiter<String, String> taskLimiter = TaskLimiter.<String, String>builder()
+            .name("Scheduling")
+            .schedulingPolicy(policy)
+            .build();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        taskLimiter.createTask("gate", 100, val -> {
+            started.countDown();
+            release.await();
+            return val;
+        });
+        started.await();
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<TaskWrapper<String, String>> wrappers = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            wrappers.add(taskLimiter.createTask(tasks.get(i), priorities.get(i), val -> {
+                order.add(val);
+                return val;
+            }));
+            TimeUnit.MILLISECONDS.sleep(pauseMillis);
+        }
+        release.countDown();
+        wrappers.forEach(task -> task.waitForThrow(1, TimeUnit.SECONDS));
+        taskLimiter.shutdownAll();
+        return order;
+    }
+
+    /**
+     * Тестирование метрик ограничителя и их публикации в JMX.
+     *
+     * @throws Exception если что-то пошло не так.
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        assertFalse(new TaskLimiter<String, Integer>(1, "NoMetrics", 10, 100, 0).getMetrics().isEnabled());
+
+        TaskLimiter<String, Integer> taskLimiter = TaskLimiter.<String, Integer>builder()
+            .name("Metrics")
+            .safetyPriority(3)
+            .limit(2, 1, TimeUnit.HOURS)
+            .metrics(new JmxMetricsExporter())
+            .build();
+        taskLimiter.createTask("task", 5, String::length).waitForThrow(1, TimeUnit.SECONDS);
+        taskLimiter.createTask("task", 5, val -> {
+            throw new IllegalStateException("failure");
+        }).waitFor(1, TimeUnit.SECONDS);
+        taskLimiter.createTask("task", 1, String::length).waitFor(1, TimeUnit.SECONDS);
+        Map<String, Number> snapshot = taskLimiter.getMetrics().snapshot();
+        assertEquals(3L, snapshot.get("submitted"));
+        assertEquals(1L, snapshot.get("completed"));
+        assertEquals(1L, snapshot.get("failed"));
+        assertEquals(1L, snapshot.get("shed"));
+        assertEquals(2L, snapshot.get("priority.5.submitted"));
+        assertEquals(2L, taskLimiter.getMetrics().getExecution().getCount());
+
+        ObjectName name = JmxMetricsExporter.objectName(taskLimiter.getMetrics());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(3L, server.getAttribute(name, "submitted"));
+        // Ограничитель с тем же именем не заменяет и не снимает опубликованные метрики первого
+        TaskLimiter<String, Integer> duplicate = TaskLimiter.<String, Integer>builder()
+            .name("Metrics")
+            .metrics(new JmxMetricsExporter())
+            .build();
+        duplicate.shutdownAll();
+        assertEquals(3L, server.getAttribute(name, "submitted"));
+        assertThrows(IllegalArgumentException.class, () -> TaskLimiter.<String, Integer>builder()
+            .name(" ")
+            .metrics(new JmxMetricsExporter())
+            .build());
+        taskLimiter.shutdownAll();
+        assertFalse(server.isRegistered(name));
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        // Погрешность корзины не превышает 1/16
+        long p99 = TimeUnit.NANOSECONDS.toMicros(histogram.percentile(0.99));
+        assertTrue(p99 >= 990 && p99 <= 990 * 17 / 16, "p99 " + p99);
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), histogram.getMax());
+    }
+
+    /**
+     * Тестирование режима диспетчера: задачи выполняются вне потока очереди, одновременно не более maxInFlight.
+     */
+    @Test
+    public void testDispatcherMode() {
+        TaskLimiter<String, Integer> taskLimiter = TaskLimiter.<String, Integer>builder()
+            .name("Dispatcher")
+            .virtualThreads()
+            .maxInFlight(4)
+            .build();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<TaskWrapper<String, Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            tasks.add(taskLimiter.createTask("task", 5, val -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                TimeUnit.MILLISECONDS.sleep(50);
+                running.decrementAndGet();
+                return val.length();
+            }));
+        }
+        long start = System.nanoTime();
+        tasks.forEach(task -> assertEquals(4, (int) task.waitForThrow(5, TimeUnit.SECONDS)));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // 16 задач по 50 мс при 4 одновременных - около 200 мс вместо 800 мс в одном потоке
+        assertTrue(maxRunning.get() <= 4, "max running " + maxRunning.get());
+        assertTrue(elapsed < 700, "elapsed " + elapsed);
+        taskLimiter.shutdownAll();
+    }
+
+    /**
+     * Тестирование адаптивного ограничителя: снижение частоты и пауза по ответу внешнего сервиса, рост при успехе.
+     */
+    @Test
+    public void testAdaptiveLimits() {
+        AdaptiveRateLimiter adaptive = AdaptiveRateLimiter.builder()
+            .name("upstream")
+            .rate(100, 10, 200)
+            .increase(100)
+            .cooldown(0, TimeUnit.MILLISECONDS)
+            .latencyThreshold(1, TimeUnit.SECONDS)
+            .throttled(failure -> failure instanceof IllegalStateException)
+            .build();
+        adaptive.onComplete(0, new IllegalStateException("429"));
+        assertEquals(50, adaptive.getRate(), 0.001);
+        adaptive.onComplete(TimeUnit.SECONDS.toNanos(2), null);
+        assertEquals(25, adaptive.getRate(), 0.001);
+        adaptive.onComplete(0, new IllegalArgumentException("bad request"));
+        assertEquals(25, adaptive.getRate(), 0.001);
+        adaptive.onComplete(0, null);
+        assertEquals(29, adaptive.getRate(), 0.001);
+        // Предел стоимости задачи не зависит от текущей частоты: за секунду накопления при minRate - 10 разрешений
+        assertEquals(10, adaptive.maxPermits());
+
+        TaskLimiter<String, Integer> taskLimiter = TaskLimiter.<String, Integer>builder()
+            .name("Adaptive")
+            .limiter(adaptive)
+            .build();
+        AtomicInteger calls = new AtomicInteger();
+        TaskWrapper<String, Integer> rejected = taskLimiter.createTask("first", 5, val -> {
+            calls.incrementAndGet();
+            throw new RetryAfterException(300, TimeUnit.MILLISECONDS);
+        });
+        assertFalse(rejected.waitFor(1, TimeUnit.SECONDS).isPresent());
+        long start = System.nanoTime();
+        TaskWrapper<String, Integer> next = taskLimiter.createTask("second", 5, val -> val.length());
+        assertEquals(6, (int) next.waitForThrow(2, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // Следующая задача ждет окончания паузы, частота снижена вдвое
+        assertTrue(elapsed >= 200, "elapsed " + elapsed);
+        assertEquals(1, calls.get());
+        assertTrue(adaptive.getRate() < 29, "rate " + adaptive.getRate());
+        taskLimiter.shutdownAll();
+    }
+
+    /**
+     * Тестирование общего лимита: ограничители одного ключа в сумме выдают не больше лимита, в том числе через файл,
+     * открытый несколькими хранилищами.
+     */
+    @Test
+    public void testSharedLimits() throws Exception {
+        assertEquals(20, sharedPermits(new InMemoryPermitStore(), new InMemoryPermitStore()) / 2);
+        InMemoryPermitStore memory = new InMemoryPermitStore();
+        assertEquals(20, sharedPermits(memory, memory));
+        Path file = Files.createTempFile("permits", ".bin");
+        try (FilePermitStore first = new FilePermitStore(file, 16);
+             FilePermitStore second = new FilePermitStore(file, 16)) {
+            assertEquals(20, sharedPermits(first, second));
+            assertEquals(0, second.remaining("vendor-api", TimeUnit.HOURS.toMillis(1), 20));
+        } finally {
+            Files.delete(file);
+        }
+
+        // Ошибка хранилища (таблица ключей заполнена) завершает задачу исключением, а не оставляет ее без ответа
+        Path single = Files.createTempFile("permits", ".bin");
+        try (FilePermitStore store = new FilePermitStore(single, 1)) {
+            store.lease("vendor-api", TimeUnit.HOURS.toMillis(1), 20, 1);
+            TaskLimiter<String, Integer> taskLimiter = TaskLimiter.<String, Integer>builder()
+                .name("Store")
+                .limiter(SharedRateLimiter.builder(store, "other-api").limit(20, 1, TimeUnit.HOURS).build())
+                .build();
+            TaskWrapper<String, Integer> failed = taskLimiter.createTask("task", 5, String::length);
+            assertFalse(failed.waitFor(1, TimeUnit.SECONDS).isPresent());
+            assertTrue(failed.getFailure() instanceof IllegalStateException);
+            taskLimiter.shutdownAll();
+        } finally {
+            Files.delete(single);
+        }
+        // Слот ключа с закончившимся окном занимает новый ключ
+        Path rotating = Files.createTempFile("permits", ".bin");
+        try (FilePermitStore store = new FilePermitStore(rotating, 1)) {
+            store.lease("short-api", 50, 20, 1);
+            TimeUnit.MILLISECONDS.sleep(110);
+            assertEquals(1, store.lease("next-api", 50, 20, 1));
+            assertEquals(19, store.remaining("next-api", 50, 20));
+            assertEquals(20, store.remaining("short-api", 50, 20));
+        } finally {
+            Files.delete(rotating);
+        }
+    }
+
+    private static int sharedPermits(PermitStore first, PermitStore second) {
+        List<SharedRateLimiter> limiters = new ArrayList<>();
+        for (PermitStore store : List.of(first, second)) {
+            limiters.add(SharedRateLimiter.builder(store, "vendor-api")
+                .limit(20, 1, TimeUnit.HOURS)
+                .leaseSize(3)
+                .build());
+        }
+        int acquired = 0;
+        for (int i = 0; i < 30; i++) {
+            for (SharedRateLimiter limiter : limiters) {
+                if (limiter.tryAcquire()) {
+                    acquired++;
+                }
+            }
+        }
+        return acquired;
+    }
+
+    /**
+     * Тестирование повторов с задержкой, крайнего срока задачи и дублирования запроса.
+     */
+    @Test
+    public void testRetryPolicies() throws InterruptedException {
+        TaskLimiter<String, Integer> taskLimiter = TaskLimiter.<String, Integer>builder()
+            .name("Retry")
+            .threadPoolSize(2)
+            .limit(100, 1, TimeUnit.SECONDS)
+            .build();
+        RetryPolicy retryPolicy = RetryPolicy.builder()
+            .maxAttempts(3)
+            .backoff(50, 1000, TimeUnit.MILLISECONDS)
+            .jitter(0)
+            .build();
+        TaskOptions options = TaskOptions.builder().retry(retryPolicy).build();
+        AtomicInteger calls = new AtomicInteger();
+        long start = System.nanoTime();
+        TaskWrapper<String, Integer> flaky = taskLimiter.createTask("task", 5, options, val -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new IllegalStateException("upstream error");
+            }
+            return val.length();
+        });
+        assertEquals(4, (int) flaky.waitForThrow(2, TimeUnit.SECONDS));
+        // Две задержки: 50 и 100 мс
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+        assertEquals(3, calls.get());
+        calls.set(0);
+        TaskWrapper<String, Integer> failing = taskLimiter.createTask("task", 5, options, val -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException("upstream error");
+        });
+        assertFalse(failing.waitFor(2, TimeUnit.SECONDS).isPresent());
+        assertEquals(3, calls.get());
+
+        // Дублированный запрос: первая попытка зависла, копия отвечает быстро
+        calls.set(0);
+        start = System.nanoTime();
+        TaskWrapper<String, Integer> hedged = taskLimiter.createTask("task", 5,
+            TaskOptions.builder().hedge(50, TimeUnit.MILLISECONDS).build(), val -> {
+                if (calls.incrementAndGet() == 1) {
+                    TimeUnit.MILLISECONDS.sleep(500);
+                }
+                return val.length();
+            });
+        assertEquals(4, (int) hedged.waitForThrow(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 400);
+        assertEquals(2, calls.get());
+        // Таймаут ожидания не завершает уже запущенную задачу
+        TaskWrapper<String, Integer> slow = taskLimiter.createTask("task", 5, val -> {
+            TimeUnit.MILLISECONDS.sleep(200);
+            return val.length();
+        });
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertFalse(slow.waitFor(10, TimeUnit.MILLISECONDS).isPresent());
+        assertEquals(4, (int) slow.waitForThrow(1, TimeUnit.SECONDS));
+        taskLimiter.shutdownAll();
+
+        TaskLimiter<String, Integer> exhausted = TaskLimiter.<String, Integer>builder()
+            .name("Deadline")
+            .limit(1, 1, TimeUnit.HOURS)
+            .build();
+        assertEquals(4, (int) exhausted.createTask("task", 5, String::length).waitForThrow(1, TimeUnit.SECONDS));
+        // Лимит исчерпан: задача со сроком завершается к сроку, задача без срока - по таймауту ожидания
+        calls.set(0);
+        TaskWrapper<String, Integer> late = exhausted.createTask("task", 5,
+            TaskOptions.builder().deadline(100, TimeUnit.MILLISECONDS).build(), val -> calls.incrementAndGet());
+        assertFalse(late.waitFor(1, TimeUnit.SECONDS).isPresent());
+        TaskWrapper<String, Integer> abandoned = exhausted.createTask("task", 5, val -> calls.incrementAndGet());
+        assertFalse(abandoned.waitFor(50, TimeUnit.MILLISECONDS).isPresent());
+        assertTrue(abandoned.isDone());
+        assertEquals(0, calls.get());
+        exhausted.shutdownAll();
+    }
+
+    /**
+     * Тестирование объединения одинаковых задач и кеша результатов: повторные задачи не расходуют разрешения.
+     */
+    @Test
+    public void testCoalescing() throws InterruptedException {
+        TaskLimiter<String, Integer> taskLimiter = TaskLimiter.<String, Integer>builder()
+            .name("Coalescing")
+            .limit(1, 1, TimeUnit.HOURS)
+            .build();
+        TaskCoalescer<String, Integer> coalescer = taskLimiter.coalescer()
+            .ttl(200, TimeUnit.MILLISECONDS)
+            .maximumSize(10)
+            .build();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        List<TaskWrapper<String, Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            tasks.add(coalescer.createTask("task", 5, val -> {
+                calls.incrementAndGet();
+                release.await();
+                return val.length();
+            }));
+        }
+        // Таймаут ожидания первого вызова не затрагивает остальные
+        assertFalse(tasks.get(0).waitFor(20, TimeUnit.MILLISECONDS).isPresent());
+        release.countDown();
+        tasks.subList(1, tasks.size()).forEach(task -> assertEquals(4, (int) task.waitForThrow(1, TimeUnit.SECONDS)));
+        // Лимит исчерпан первой задачей, повторная получает результат из кеша
+        assertEquals(4, (int) coalescer.createTask("task", 5, String::length).waitForThrow(1, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertEquals(1, coalescer.getHits());
+        assertEquals(5, coalescer.getMisses());
+        assertEquals(4, coalescer.getCoalesced());
+        TimeUnit.MILLISECONDS.sleep(250);
+        assertFalse(coalescer.createTask("task", 5, String::length).waitFor(50, TimeUnit.MILLISECONDS).isPresent());
+        assertEquals(0, coalescer.snapshot().get("inFlight").intValue());
+        taskLimiter.shutdownAll();
+    }
+
+    /**
+     * Тестирование кольца диспетчера: заполненное кольцо отклоняет задачу, ячейки переиспользуются на следующих
+     * оборотах без нарушения порядка.
+     */
+    @Test
+    public void testMpscRing() {
+        MpscRing<Integer, String> ring = new MpscRing<>(3);
+        assertEquals(4, ring.capacity());
+        assertFalse(ring.isReady());
+        int produced = 0;
+        int consumed = 0;
+        // Неполные обороты сдвигают голову относительно начала массива, поэтому хвост переходит через его конец
+        for (int round = 0; round < 10; round++) {
+            while (ring.offer(produced, "cb" + produced)) {
+                produced++;
+            }
+            assertEquals(consumed + ring.capacity(), produced);
+            assertFalse(ring.offer(-1, "full"));
+            for (int i = 0; i < 3; i++) {
+                assertTrue(ring.isReady());
+                assertEquals(consumed, (int) ring.task());
+                assertEquals("cb" + consumed, ring.callback());
+                ring.advance();
+                consumed++;
+            }
+        }
+        assertTrue(ring.isReady());
+        assertEquals(consumed, (int) ring.task());
+        ring.advance();
+        assertFalse(ring.isReady());
+        assertTrue(ring.offer(produced, "cb" + produced));
+    }
+
+    /**
+     * Тестирование диспетчера на кольцах: старшая полоса обслуживается первой, заполненное кольцо отклоняет задачу.
+     */
+    @Test
+    public void testTaskDispatcher() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TaskDispatcher<String, Integer> dispatcher = TaskDispatcher.<String, Integer>builder(val -> {
+            if (val.equals("blocker")) {
+                started.countDown();
+                release.await();
+            }
+            return val.length();
+        })
+            .name("Rings")
+            .bands(0, 5)
+            .ringSize(2)
+            .limit(100, 1, TimeUnit.SECONDS)
+            .build();
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(4);
+        TaskDispatcher.Callback<String, Integer> callback = (task, result, failure) -> {
+            order.add(task + "=" + result);
+            done.countDown();
+        };
+        assertTrue(dispatcher.offer("blocker", 1, callback));
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertTrue(dispatcher.offer("low", 1, callback));
+        assertTrue(dispatcher.offer("lower", 1, callback));
+        assertFalse(dispatcher.offer("lowest", 1, callback));
+        assertTrue(dispatcher.offer("high", 7, callback));
+        release.countDown();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(List.of("blocker=7", "high=4", "low=3", "lower=5"), order);
+        dispatcher.shutdown();
+        // Каждая принятая задача получает обработчик, даже принятая одновременно с остановкой
+        TaskDispatcher<String, Integer> stopping = TaskDispatcher.<String, Integer>builder(String::length)
+            .name("Stopping")
+            .ringSize(1 << 16)
+            .limit(1_000_000, 1, TimeUnit.SECONDS)
+            .build();
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger completed = new AtomicInteger();
+        Thread producer = new Thread(() -> {
+            while (stopping.offer("task", 0, (task, result, failure) -> completed.incrementAndGet())) {
+                accepted.incrementAndGet();
+            }
+        });
+        producer.start();
+        TimeUnit.MILLISECONDS.sleep(20);
+        stopping.shutdown();
+        producer.join(1000);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (completed.get() < accepted.get() && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertEquals(accepted.get(), completed.get());
+    }
+
+    /**
+     * Тестирование журнала: задачи из очереди, отложенные и не поместившиеся в очередь переживают перезапуск и
+     * восстанавливаются в порядке приоритета в пределах свободного места в очереди.
+     */
+    @Test
+    public void testJournal() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        TaskSerializer<String> serializer = new TaskSerializer<>() {
+            @Override
+            public byte[] serialize(String task) {
+                return task.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String deserialize(byte[] data) {
+                return new String(data, StandardCharsets.UTF_8);
+            }
+        };
+        TaskJournal<String> journal = TaskJournal.builder(directory, serializer).segmentSize(32).build();
+        TaskLimiter<String, Integer> stopped = TaskLimiter.<String, Integer>builder()
+            .name("Journal")
+            .limit(1, 1, TimeUnit.HOURS)
+            .capacity(2)
+            .journal(journal, String::length)
+            .build();
+        assertEquals(2, (int) stopped.createTask("t0", 5, String::length).waitForThrow(1, TimeUnit.SECONDS));
+        final List<TaskWrapper<String, Integer>> pending = List.of(
+            stopped.createTask("t1", 1, String::length),
+            stopped.createTask("t2", 5, String::length),
+            stopped.createTask("t3", 3, String::length),
+            stopped.createTask("t4", 9, String::length));
+        TimeUnit.MILLISECONDS.sleep(100);
+        stopped.shutdownAll();
+        journal.close();
+        pending.forEach(task -> assertTrue(task.isCancelled()));
+
+        // Журнал: t3, t4 не поместились в очередь, t2, t1 сохранены при остановке по приоритету. В очередь
+        // емкости 2 попадают только первые две записи, остальные читаются из журнала по мере освобождения места.
+        // Запись отмечается прочитанной только после выполнения задачи: t3 и t2 в очереди остаются в журнале
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        TaskJournal<String> bounded = TaskJournal.builder(directory, serializer).segmentSize(32).build();
+        final TaskLimiter<String, Integer> partial = TaskLimiter.<String, Integer>builder()
+            .name("Journal")
+            .limit(1, 1, TimeUnit.HOURS)
+            .capacity(2)
+            .journal(bounded, val -> {
+                order.add(val);
+                return val.length();
+            })
+            .build();
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals(List.of("t4"), order);
+        assertEquals(List.of("t3", "t2", "t1"), bounded.pending().stream().map(TaskJournal.Entry::getTask)
+            .collect(Collectors.toList()));
+        partial.shutdownAll();
+        bounded.close();
+
+        order.clear();
+        CountDownLatch replayed = new CountDownLatch(3);
+        TaskJournal<String> reopened = TaskJournal.builder(directory, serializer).segmentSize(32).build();
+        final TaskLimiter<String, Integer> restarted = TaskLimiter.<String, Integer>builder()
+            .name("Journal")
+            .journal(reopened, val -> {
+                order.add(val);
+                replayed.countDown();
+                return val.length();
+            })
+            .build();
+        assertTrue(replayed.await(1, TimeUnit.SECONDS));
+        assertEquals(List.of("t2", "t3", "t1"), order);
+        assertTrue(restarted.drain(1, TimeUnit.SECONDS));
+        assertTrue(reopened.pending().isEmpty());
+        restarted.shutdownAll();
+        reopened.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Collections.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    /**
+     * Тестирование жизненного цикла: пауза и разгон, ожидание очереди, изъятие задач и остановка с отложенными
+     * задачами.
+     */
+    @Test
+    public void testLifecycle() throws InterruptedException {
+        TaskLimiter<Integer, Integer> limiter = TaskLimiter.<Integer, Integer>builder()
+            .name("Lifecycle")
+            .threadPoolSize(2)
+            .limit(20, 1, TimeUnit.SECONDS)
+            .build();
+        limiter.pause();
+        List<TaskWrapper<Integer, Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            tasks.add(limiter.createTask(i, 1, val -> val));
+        }
+        TimeUnit.MILLISECONDS.sleep(100);
+        tasks.forEach(task -> assertFalse(task.isDone()));
+        limiter.resume(1, TimeUnit.SECONDS);
+        TimeUnit.MILLISECONDS.sleep(300);
+        // За треть секунды разгона выдается около 1 + 10 * 0.3^2 задач, а не все 10 одним всплеском
+        assertTrue(tasks.stream().filter(TaskWrapper::isDone).count() <= 3);
+        assertTrue(limiter.drain(3, TimeUnit.SECONDS));
+        tasks.forEach(task -> assertTrue(task.isDone() && !task.isCompletedExceptionally()));
+        TaskWrapper<Integer, Integer> rejected = limiter.createTask(0, 1, val -> val);
+        assertTrue(rejected.getFailure() instanceof RejectedExecutionException);
+        limiter.close();
+
+        TaskLimiter<Integer, Integer> stopped = TaskLimiter.<Integer, Integer>builder()
+            .name("Lifecycle")
+            .limit(1, 1, TimeUnit.HOURS)
+            .build();
+        assertEquals(1, (int) stopped.createTask(1, 1, val -> val).waitForThrow(1, TimeUnit.SECONDS));
+        stopped.pause();
+        final TaskWrapper<Integer, Integer> low = stopped.createTask(2, 1, val -> val);
+        final TaskWrapper<Integer, Integer> high = stopped.createTask(3, 5, val -> val);
+        assertEquals(List.of(3, 2), stopped.removePending());
+        assertTrue(low.isCancelled() && high.isCancelled());
+        stopped.resume();
+        final TaskWrapper<Integer, Integer> deferred = stopped.createTask(4, 1, val -> val);
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertFalse(stopped.drain(50, TimeUnit.MILLISECONDS));
+        stopped.close();
+        assertTrue(deferred.getFailure() instanceof CancellationException);
+        assertEquals("limiter stopped", deferred.getFailure().getMessage());
+
+        // Задача, отложенная уже после остановки, завершается отменой, а не остается в отложенных навсегда
+        CountDownLatch throttling = new CountDownLatch(1);
+        CountDownLatch closing = new CountDownLatch(1);
+        final TaskLimiter<Integer, Integer> throttled = TaskLimiter.<Integer, Integer>builder()
+            .name("Lifecycle")
+            .limiter(new RateLimiter() {
+                @Override
+                public boolean tryAcquire() {
+                    throttling.countDown();
+                    try {
+                        return !closing.await(1, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+
+                @Override
+                public void release() {
+                }
+
+                @Override
+                public int available() {
+                    return 0;
+                }
+
+                @Override
+                public long nanosToNextPermit() {
+                    return TimeUnit.SECONDS.toNanos(1);
+                }
+
+                @Override
+                public String getName() {
+                    return "throttling";
+                }
+            })
+            .build();
+        TaskWrapper<Integer, Integer> late = throttled.createTask(5, 1, val -> val);
+        CountDownLatch done = new CountDownLatch(1);
+        late.whenDone(done::countDown);
+        assertTrue(throttling.await(1, TimeUnit.SECONDS));
+        throttled.close();
+        closing.countDown();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(late.getFailure() instanceof CancellationException);
+    }
+
+    /**
+     * Тестирование задач разной стоимости: разрешения забираются атомарно, а отложенная дорогая задача не задерживает
+     * легкие задачи, которым хватает остатка лимита.
+     */
+    @Test
+    public void testWeightedPermits() throws InterruptedException {
+        for (RateLimiter.Strategy strategy : RateLimiter.Strategy.values()) {
+            RateLimiter rateLimiter = strategy.create(strategy.name(), 10, 1, TimeUnit.HOURS);
+            assertTrue(rateLimiter.tryAcquire(7));
+            assertFalse(rateLimiter.tryAcquire(4));
+            assertEquals(3, rateLimiter.available());
+            rateLimiter.release(2);
+            assertTrue(rateLimiter.tryAcquire(5));
+            assertTrue(rateLimiter.nanosToPermits(1) > 0);
+        }
+
+        TaskLimiter<String, Integer> taskLimiter = TaskLimiter.<String, Integer>builder()
+            .name("Weighted")
+            .limit(10, 1, TimeUnit.HOURS)
+            .cost(String::length)
+            .build();
+        assertEquals(6, (int) taskLimiter.createTask("aaaaaa", 5, String::length).waitForThrow(1, TimeUnit.SECONDS));
+        final TaskWrapper<String, Integer> heavy = taskLimiter.createTask("bbbbbbbb", 5, String::length);
+        TimeUnit.MILLISECONDS.sleep(50);
+        // Дорогая задача ждет, легкие задачи выполняются в пределах оставшихся 4 разрешений
+        assertEquals(2, (int) taskLimiter.createTask("cc", 1, String::length).waitForThrow(1, TimeUnit.SECONDS));
+        assertEquals(9, (int) taskLimiter.createTask("d", 1, TaskOptions.builder().cost(2).build(), val -> 9)
+            .waitForThrow(1, TimeUnit.SECONDS));
+        assertFalse(heavy.isDone());
+        assertFalse(taskLimiter.createTask("ee", 1, String::length).waitFor(100, TimeUnit.MILLISECONDS).isPresent());
+        TaskWrapper<String, Integer> oversized = taskLimiter.createTask("fffffffffff", 1, String::length);
+        assertTrue(oversized.getFailure() instanceof IllegalArgumentException);
+        taskLimiter.shutdownAll();
+
+        // Пакет задач проходит ту же проверку стоимости, что и одиночные задачи
+        TaskLimiter<String, Integer> bulk = TaskLimiter.<String, Integer>builder()
+            .name("Weighted")
+            .limit(10, 1, TimeUnit.HOURS)
+            .cost(String::length)
+            .build();
+        List<TaskWrapper<String, Integer>> weighted =
+            bulk.createTasks(List.of("jjjjjj", "kkkkkkkkkkk", "lll"), 1, String::length);
+        assertEquals(6, (int) weighted.get(0).waitForThrow(1, TimeUnit.SECONDS));
+        assertTrue(weighted.get(1).getFailure() instanceof IllegalArgumentException);
+        assertEquals(3, (int) weighted.get(2).waitForThrow(1, TimeUnit.SECONDS));
+        assertEquals(1, bulk.availablePermits());
+        bulk.shutdownAll();
+
+        // Предел стоимости учитывает любые ограничители, а пакет PER_ITEM расходует сумму стоимостей задач
+        TaskLimiter<String, Integer> custom = TaskLimiter.<String, Integer>builder()
+            .name("Weighted")
+            .limiter(RateLimiter.Strategy.TOKEN_BUCKET.create("custom", 5, 1, TimeUnit.HOURS))
+            .cost(String::length)
+            .build();
+        assertTrue(custom.createTask("gggggg", 1, String::length).getFailure() instanceof IllegalArgumentException);
+        TaskBatcher<String, Integer> batcher = custom.batcher(tasks -> tasks.stream()
+            .collect(Collectors.toMap(task -> task, String::length)))
+            .maxBatchSize(2)
+            .permits(TaskBatcher.Permits.PER_ITEM)
+            .build();
+        batcher.createTask("hh", 1);
+        assertEquals(3, (int) batcher.createTask("iii", 1).waitForThrow(1, TimeUnit.SECONDS));
+        assertEquals(0, custom.availablePermits());
+        custom.shutdownAll();
+    }
+
+    /**
+     * Тестирование процессора потока: результаты выдаются по порядку, а запрос элементов ограничен окном.
+     */
+    @Test
+    public void testTaskProcessor() throws InterruptedException {
+        TaskLimiter<Integer, Integer> taskLimiter = TaskLimiter.<Integer, Integer>builder()
+            .name("Processor")
+            .threadPoolSize(4)
+            .limit(1000, 1, TimeUnit.SECONDS)
+            .build();
+        Random random = new Random();
+        for (boolean ordered : new boolean[] {true, false}) {
+            AtomicInteger processed = new AtomicInteger();
+            TaskProcessor<Integer, Integer> processor = taskLimiter.processor(val -> {
+                processed.incrementAndGet();
+                TimeUnit.MILLISECONDS.sleep(random.nextInt(3));
+                return val * 2;
+            }).window(8).ordered(ordered).build();
+            List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch completed = new CountDownLatch(1);
+            CompletableFuture<Flow.Subscription> downstream = new CompletableFuture<>();
+            processor.subscribe(new Flow.Subscriber<>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    downstream.complete(subscription);
+                }
+
+                @Override
+                public void onNext(Integer item) {
+                    results.add(item);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public void onComplete() {
+                    completed.countDown();
+                }
+            });
+            try (SubmissionPublisher<Integer> publisher = new SubmissionPublisher<>()) {
+                publisher.subscribe(processor);
+                for (int i = 0; i < 200; i++) {
+                    publisher.submit(i);
+                }
+                TimeUnit.MILLISECONDS.sleep(200);
+                // Подписчик еще ничего не запросил: выполнено не больше окна элементов
+                assertEquals(8, processed.get());
+                downstream.join().request(Long.MAX_VALUE);
+            }
+            assertTrue(completed.await(5, TimeUnit.SECONDS));
+            List<Integer> expected = IntStream.range(0, 200).map(i -> i * 2).boxed().collect(Collectors.toList());
+            if (!ordered) {
+                Collections.sort(results);
+            }
+            assertEquals(expected, results);
+        }
+        TaskProcessor<Integer, Integer> failing = taskLimiter.processor(val -> {
+            if (val == 5) {
+                throw new IllegalStateException("enrichment failed");
+            }
+            return val;
+        }).window(4).build();
+        CompletableFuture<Throwable> failure = new CompletableFuture<>();
+        failing.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Integer item) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                failure.complete(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                failure.complete(null);
+            }
+        });
+        SubmissionPublisher<Integer> publisher = new SubmissionPublisher<>();
+        publisher.subscribe(failing);
+        for (int i = 0; i < 10; i++) {
+            publisher.submit(i);
+        }
+        assertTrue(failure.join() instanceof IllegalStateException);
+        publisher.close();
+        taskLimiter.shutdownAll();
+    }
+}